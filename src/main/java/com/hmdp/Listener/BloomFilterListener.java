@@ -0,0 +1,44 @@
+package com.hmdp.Listener;
+
+import com.hmdp.utils.RedisBloomFilter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+
+@Slf4j
+@Component
+public class BloomFilterListener implements MessageListener {
+    @Resource
+    List<RedisBloomFilter> bloomFilters;
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (BLOOM_ADD_CHANNEL.equals(channel)) {
+            //新增消息格式为 过滤器key#元素
+            int index = body.indexOf('#');
+            String key = body.substring(0, index);
+            String value = body.substring(index + 1);
+            for (RedisBloomFilter filter : bloomFilters) {
+                if (filter.getKey().equals(key)) {
+                    filter.putLocal(value);
+                }
+            }
+            return;
+        }
+        //重建消息体就是过滤器key，重新拉取整个bitmap
+        for (RedisBloomFilter filter : bloomFilters) {
+            if (filter.getKey().equals(body)) {
+                log.info("布隆过滤器{}已重建，刷新本地镜像", body);
+                filter.reload();
+            }
+        }
+    }
+}
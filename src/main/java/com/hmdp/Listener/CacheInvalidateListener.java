@@ -0,0 +1,24 @@
+package com.hmdp.Listener;
+
+import com.hmdp.utils.CacheClient;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+@Slf4j
+@Component
+public class CacheInvalidateListener implements MessageListener {
+    @Resource
+    CacheClient cacheClient;
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        //消息体就是要失效的缓存key
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        log.debug("收到缓存失效广播:{}", key);
+        cacheClient.evictLocal(key);
+    }
+}
@@ -0,0 +1,108 @@
+package com.hmdp.Listener;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.OrderTimeoutWheel;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 推动未支付订单的超时时间轮：每个刻度认领对应槽中到期的订单，按批取消，事务提交后才从槽中删除；
+ * 取消失败或节点宕机的订单在认领的租约到期后重试；redis库存归还失败的订单从重试队列中认领后重新归还
+ */
+@Slf4j
+@Component
+public class OrderTimeoutListener {
+    @Resource
+    OrderTimeoutWheel orderTimeoutWheel;
+    @Resource
+    VoucherOrderServiceImpl voucherOrderService;
+    @Value("${hmdp.seckill.order-timeout.batch-size:100}")
+    private int batchSize;
+    /**
+     * 上次处理到的刻度，只在调度线程中访问
+     */
+    private long lastTick = -1;
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.order-timeout.tick:1000}")
+    public void tick() {
+        if (!orderTimeoutWheel.isEnabled()) {
+            return;
+        }
+        long current = orderTimeoutWheel.currentTick();
+        //1.刚启动或者落后超过一圈时检查所有槽，补上停机期间到期的订单
+        if (lastTick < 0 || current - lastTick >= orderTimeoutWheel.wheelSize()) {
+            lastTick = current - orderTimeoutWheel.wheelSize() + 1;
+        }
+        //2.从上次的刻度开始检查，上次检查时还没到期的订单在这次处理，不用等下一圈
+        for (long tick = lastTick; tick <= current; tick++) {
+            expire(tick);
+        }
+        lastTick = current;
+        //3.重新归还之前失败的redis库存
+        retryReleases();
+    }
+
+    private void retryReleases() {
+        while (true) {
+            List<VoucherOrder> orders;
+            try {
+                orders = orderTimeoutWheel.claimReleases(batchSize);
+            } catch (Exception e) {
+                log.error("认领归还库存失败的订单失败", e);
+                return;
+            }
+            if (orders.isEmpty()) {
+                return;
+            }
+            //失败的订单不删除，租约到期后再次重试
+            List<VoucherOrder> failed = voucherOrderService.releaseStock(orders);
+            List<VoucherOrder> released = new ArrayList<>(orders);
+            released.removeAll(failed);
+            try {
+                orderTimeoutWheel.completeReleases(released);
+            } catch (Exception e) {
+                log.warn("删除{}个已归还库存的订单失败", released.size(), e);
+            }
+            if (!failed.isEmpty() || orders.size() < batchSize) {
+                return;
+            }
+        }
+    }
+
+    private void expire(long tick) {
+        while (true) {
+            List<VoucherOrder> orders;
+            try {
+                orders = orderTimeoutWheel.claim(tick, batchSize);
+            } catch (Exception e) {
+                log.error("认领超时订单失败", e);
+                return;
+            }
+            if (orders.isEmpty()) {
+                return;
+            }
+            try {
+                voucherOrderService.cancelUnpaidOrders(orders);
+            } catch (Exception e) {
+                log.error("取消{}个超时订单失败，租约到期后重试", orders.size(), e);
+                return;
+            }
+            try {
+                orderTimeoutWheel.complete(tick, orders);
+            } catch (Exception e) {
+                //已经取消的订单再次认领时会跳过
+                log.warn("删除{}个已取消的超时订单失败", orders.size(), e);
+            }
+            if (orders.size() < batchSize) {
+                return;
+            }
+        }
+    }
+}
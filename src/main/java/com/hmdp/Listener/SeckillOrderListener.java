@@ -1,27 +1,94 @@
 package com.hmdp.Listener;
 
 import com.hmdp.entity.VoucherOrder;
-import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.impl.VoucherOrderServiceImpl;
 import com.rabbitmq.client.Channel;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+@Slf4j
 @Component
+@ConditionalOnProperty(name = "hmdp.seckill.order-queue", havingValue = "rabbit", matchIfMissing = true)
 public class SeckillOrderListener {
+    /**
+     * 消息已经重新投递的次数
+     */
+    private static final String RETRY_HEADER = "x-retry-count";
     @Autowired
     VoucherOrderServiceImpl voucherOrderService;
-    @RabbitListener(queues = {"seckill.order.queue"})
-    public void recieveMessage(Message message, Channel channel, VoucherOrder voucherOrder){
+    @Autowired
+    MessageConverter messageConverter;
+    @Autowired
+    RabbitTemplate rabbitTemplate;
+    @Value("${hmdp.seckill.order-batch.max-retries:3}")
+    private int maxRetries;
+
+    /**
+     * 批量消费订单消息，一个事务写入整批订单，成功后一次ack整批消息
+     */
+    @RabbitListener(queues = {"seckill.order.queue"}, containerFactory = "batchListenerContainerFactory")
+    public void recieveMessages(List<Message> messages, Channel channel) throws IOException {
+        List<VoucherOrder> orders = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            orders.add((VoucherOrder) messageConverter.fromMessage(message));
+        }
+        long lastTag = messages.get(messages.size() - 1).getMessageProperties().getDeliveryTag();
+        try {
+            voucherOrderService.handleVoucherOrders(orders);
+            channel.basicAck(lastTag, true);
+            return;
+        } catch (Exception e) {
+            log.warn("批量写入{}个订单失败，逐条重试", orders.size(), e);
+        }
+        //整批失败(比如重新投递的消息中有已经写入的订单)时逐条处理，只影响出错的那一条
+        for (int i = 0; i < messages.size(); i++) {
+            long tag = messages.get(i).getMessageProperties().getDeliveryTag();
+            try {
+                voucherOrderService.handleVoucherOrder(orders.get(i));
+                channel.basicAck(tag, false);
+            } catch (DuplicateKeyException e) {
+                log.info("订单{}已经写入，直接确认", orders.get(i).getId());
+                channel.basicAck(tag, false);
+            } catch (Exception e) {
+                log.error("写入订单{}失败", orders.get(i).getId(), e);
+                retryOrDeadLetter(messages.get(i), channel);
+            }
+        }
+    }
+
+    /**
+     * redis中的库存已经扣减，订单不能丢：重试次数没用完时带上次数重新投递，用完后转入死信队列，
+     * 投递成功后再确认原消息；投递失败时退回原来的重新入队
+     */
+    private void retryOrDeadLetter(Message message, Channel channel) throws IOException {
+        long tag = message.getMessageProperties().getDeliveryTag();
+        Object header = message.getMessageProperties().getHeaders().get(RETRY_HEADER);
+        int retries = header instanceof Number ? ((Number) header).intValue() : 0;
         try {
-            voucherOrderService.handleVoucherOrder(voucherOrder);
-            channel.basicAck(message.getMessageProperties().getDeliveryTag(), false);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            if (retries < maxRetries) {
+                message.getMessageProperties().setHeader(RETRY_HEADER, retries + 1);
+                rabbitTemplate.send("seckill.direct", "seckill.order", message);
+            } else {
+                log.error("订单消息重试{}次仍然失败，转入死信队列", retries);
+                rabbitTemplate.send("", "seckill.order.dead.queue", message);
+            }
+        } catch (Exception e) {
+            log.error("重新投递订单消息失败", e);
+            channel.basicNack(tag, false, true);
+            return;
         }
+        channel.basicAck(tag, false);
     }
 }
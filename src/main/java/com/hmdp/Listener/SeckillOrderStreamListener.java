@@ -0,0 +1,244 @@
+package com.hmdp.Listener;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.RedisIdWorker;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DEAD_STREAM_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+
+/**
+ * 消费redis stream中的秒杀订单：消费者组读取新订单，按批写入数据库后XACK并删除；
+ * 启动时先处理自己名下未确认的订单，运行中定时认领其他消费者挂起太久的订单(比如宕机的节点)，
+ * 投递次数超过上限的订单转入死信stream
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.order-queue", havingValue = "stream")
+public class SeckillOrderStreamListener {
+    private static final String GROUP = "g1";
+    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "seckill-order-stream"));
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Resource
+    VoucherOrderServiceImpl voucherOrderService;
+    @Value("${hmdp.seckill.order-batch.size:100}")
+    private int batchSize;
+    @Value("${hmdp.seckill.stream.block:2000}")
+    private long blockMillis;
+    @Value("${hmdp.seckill.stream.claim-idle:60000}")
+    private long claimIdleMillis;
+    @Value("${hmdp.seckill.order-batch.max-retries:3}")
+    private int maxRetries;
+    @Value("${hmdp.seckill.stream.consumer:${spring.application.name}-${server.port}}")
+    private String consumerName;
+    private volatile boolean running = true;
+
+    @PostConstruct
+    private void init() {
+        createGroup();
+        SECKILL_ORDER_EXECUTOR.submit(this::consume);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        running = false;
+        SECKILL_ORDER_EXECUTOR.shutdown();
+    }
+
+    private void createGroup() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                    ((StringRedisConnection) connection).xGroupCreate(SECKILL_ORDER_STREAM_KEY, ReadOffset.from("0"), GROUP, true));
+        } catch (RedisSystemException e) {
+            //BUSYGROUP说明消费者组已经存在
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    private void consume() {
+        Consumer consumer = Consumer.from(GROUP, consumerName);
+        //1.先处理重启前已经读取但没有确认的订单
+        handlePendingOfSelf(consumer);
+        long lastClaim = System.currentTimeMillis();
+        while (running) {
+            try {
+                //2.定时认领其他消费者挂起太久的订单
+                if (System.currentTimeMillis() - lastClaim >= claimIdleMillis) {
+                    claimIdle(consumer);
+                    lastClaim = System.currentTimeMillis();
+                }
+                //3.读取新订单，没有就阻塞等待
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(consumer,
+                        StreamReadOptions.empty().count(batchSize).block(Duration.ofMillis(blockMillis)),
+                        StreamOffset.create(SECKILL_ORDER_STREAM_KEY, ReadOffset.lastConsumed()));
+                if (records != null && !records.isEmpty()) {
+                    handle(records);
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+                log.error("处理订单异常", e);
+                sleep();
+            }
+        }
+    }
+
+    private void handlePendingOfSelf(Consumer consumer) {
+        //从头遍历一遍自己名下的pending订单，处理失败的留给后面的定时认领重试
+        String offset = "0";
+        while (running) {
+            try {
+                List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream().read(consumer,
+                        StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(SECKILL_ORDER_STREAM_KEY, ReadOffset.from(offset)));
+                if (records == null || records.isEmpty()) {
+                    return;
+                }
+                handle(records);
+                offset = records.get(records.size() - 1).getId().getValue();
+            } catch (Exception e) {
+                log.error("处理pending订单异常", e);
+                sleep();
+            }
+        }
+    }
+
+    /**
+     * 分页遍历pending列表：投递次数超过上限的订单转入死信stream，其余挂起太久的认领后重试，
+     * 每次最多认领batchSize个，处理不了的订单不会一直占着列表头部
+     */
+    private void claimIdle(Consumer consumer) {
+        List<RecordId> ids = new ArrayList<>();
+        Range<String> range = Range.unbounded();
+        while (ids.size() < batchSize) {
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(SECKILL_ORDER_STREAM_KEY, GROUP, range, batchSize);
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() < claimIdleMillis) {
+                    continue;
+                }
+                if (message.getTotalDeliveryCount() > maxRetries) {
+                    deadLetter(message.getId());
+                } else if (ids.size() < batchSize) {
+                    ids.add(message.getId());
+                }
+            }
+            if (pending.size() < batchSize) {
+                break;
+            }
+            //下一页从最后一条的下一个id开始
+            RecordId last = pending.get(pending.size() - 1).getId();
+            range = Range.rightUnbounded(Range.Bound.inclusive(
+                    RecordId.of(last.getTimestamp(), last.getSequence() + 1).getValue()));
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<? extends MapRecord<String, ?, ?>> claimed = stringRedisTemplate.execute((RedisCallback<List<? extends MapRecord<String, ?, ?>>>) connection ->
+                ((StringRedisConnection) connection).xClaim(SECKILL_ORDER_STREAM_KEY, GROUP, consumer.getName(),
+                        RedisStreamCommands.XClaimOptions.minIdleMs(claimIdleMillis).ids(ids)));
+        if (claimed != null && !claimed.isEmpty()) {
+            log.info("认领了{}个挂起的订单", claimed.size());
+            handle(claimed);
+        }
+    }
+
+    /**
+     * 重试多次仍然写入失败的订单复制到死信stream，排查后手动处理，再从订单stream中确认并删除
+     */
+    private void deadLetter(RecordId id) {
+        List<MapRecord<String, Object, Object>> records = stringRedisTemplate.opsForStream()
+                .range(SECKILL_ORDER_STREAM_KEY, Range.closed(id.getValue(), id.getValue()));
+        if (records != null && !records.isEmpty()) {
+            stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DEAD_STREAM_KEY, records.get(0).getValue());
+            log.error("订单消息{}重试{}次仍然失败，转入死信stream", id, maxRetries);
+        }
+        ack(id);
+    }
+
+    /**
+     * 整批写入数据库，失败时逐条处理；写入成功和已经存在的订单确认并删除，其他失败的留在pending中等待认领重试
+     */
+    private void handle(List<? extends MapRecord<String, ?, ?>> records) {
+        List<VoucherOrder> orders = records.stream()
+                .map(record -> toOrder(record.getValue()))
+                .collect(Collectors.toList());
+        try {
+            voucherOrderService.handleVoucherOrders(orders);
+            ack(records.stream().map(MapRecord::getId).toArray(RecordId[]::new));
+            return;
+        } catch (Exception e) {
+            log.warn("批量写入{}个订单失败，逐条重试", orders.size(), e);
+        }
+        for (int i = 0; i < records.size(); i++) {
+            try {
+                voucherOrderService.handleVoucherOrder(orders.get(i));
+            } catch (DuplicateKeyException e) {
+                log.info("订单{}已经写入，直接确认", orders.get(i).getId());
+            } catch (Exception e) {
+                log.error("写入订单{}失败", orders.get(i).getId(), e);
+                continue;
+            }
+            ack(records.get(i).getId());
+        }
+    }
+
+    private static VoucherOrder toOrder(Map<?, ?> value) {
+        VoucherOrder order = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), false);
+        //脚本分配序列号时没有写入id，用时间戳和序列号拼接
+        if (order.getId() == null) {
+            order.setId(RedisIdWorker.compose(Long.parseLong(value.get("timestamp").toString()),
+                    Long.parseLong(value.get("seq").toString())));
+        }
+        return order;
+    }
+
+    private void ack(RecordId... ids) {
+        stringRedisTemplate.opsForStream().acknowledge(SECKILL_ORDER_STREAM_KEY, GROUP, ids);
+        stringRedisTemplate.opsForStream().delete(SECKILL_ORDER_STREAM_KEY, ids);
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
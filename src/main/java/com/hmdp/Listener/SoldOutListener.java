@@ -0,0 +1,28 @@
+package com.hmdp.Listener;
+
+import com.hmdp.utils.SoldOutMarker;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+@Component
+public class SoldOutListener implements MessageListener {
+    @Resource
+    SoldOutMarker soldOutMarker;
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        //消息体就是优惠券id
+        Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (SECKILL_SOLD_OUT_CHANNEL.equals(channel)) {
+            soldOutMarker.onSoldOut(voucherId);
+        } else {
+            soldOutMarker.onReplenish(voucherId);
+        }
+    }
+}
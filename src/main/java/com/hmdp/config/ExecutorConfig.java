@@ -0,0 +1,28 @@
+package com.hmdp.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Configuration
+public class ExecutorConfig {
+    /**
+     * 缓存重建线程池，CacheClient的异步重建、提前刷新调度器和ShopServiceImpl共用，
+     * 队列有界，满了直接拒绝，由调用方回退为返回旧数据
+     */
+    @Bean
+    public ExecutorService cacheRebuildExecutor(@Value("${hmdp.cache.rebuild.pool-size:10}") int poolSize,
+                                                @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity) {
+        AtomicInteger index = new AtomicInteger();
+        return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(queueCapacity),
+                r -> new Thread(r, "cache-rebuild-" + index.incrementAndGet()),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+}
@@ -1,7 +1,12 @@
 package com.hmdp.config;
 
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -11,4 +16,32 @@ public class RabbitMQConfig {
     public MessageConverter messageConverter() {
         return new Jackson2JsonMessageConverter();
     }
+
+    /**
+     * 重试多次仍然写入失败的订单消息转入这个队列，排查后手动处理，不再无限重新入队
+     */
+    @Bean
+    public Queue seckillOrderDeadQueue() {
+        return new Queue("seckill.order.dead.queue");
+    }
+
+    /**
+     * 批量消费的监听容器：攒够batchSize条消息或者等待receiveTimeout毫秒后一次交给监听器，
+     * 其余配置(手动ack等)沿用spring.rabbitmq.listener.simple
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchListenerContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory,
+            @Value("${hmdp.seckill.order-batch.size:100}") int batchSize,
+            @Value("${hmdp.seckill.order-batch.receive-timeout:50}") long receiveTimeout) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(receiveTimeout);
+        //预取数量至少要能攒满一批
+        factory.setPrefetchCount(batchSize * 2);
+        return factory;
+    }
 }
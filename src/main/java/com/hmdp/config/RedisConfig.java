@@ -1,10 +1,21 @@
 package com.hmdp.config;
 
+import com.hmdp.Listener.BloomFilterListener;
+import com.hmdp.Listener.CacheInvalidateListener;
+import com.hmdp.Listener.SoldOutListener;
+import com.hmdp.utils.RedisBloomFilter;
 import org.redisson.Redisson;
 import org.redisson.api.RedissonClient;
 import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 @Configuration
 public class RedisConfig {
@@ -16,4 +27,28 @@ public class RedisConfig {
         config.useSingleServer().setAddress("redis://120.26.122.127:6379");// 创建客户
         return Redisson.create(config);
     }
+
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory connectionFactory,
+                                                                       CacheInvalidateListener cacheInvalidateListener,
+                                                                       BloomFilterListener bloomFilterListener,
+                                                                       SoldOutListener soldOutListener) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(connectionFactory);
+        // 订阅缓存失效广播，收到后清除本节点的一级缓存
+        container.addMessageListener(cacheInvalidateListener, new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
+        // 订阅布隆过滤器的新增和重建广播，同步本地镜像
+        container.addMessageListener(bloomFilterListener, new ChannelTopic(BLOOM_ADD_CHANNEL));
+        container.addMessageListener(bloomFilterListener, new ChannelTopic(BLOOM_RELOAD_CHANNEL));
+        // 订阅秒杀券售罄和补充库存的广播，同步本地售罄标记
+        container.addMessageListener(soldOutListener, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        container.addMessageListener(soldOutListener, new ChannelTopic(SECKILL_REPLENISH_CHANNEL));
+        return container;
+    }
+    @Bean
+    public RedisBloomFilter shopBloomFilter(StringRedisTemplate stringRedisTemplate, RedissonClient redissonClient,
+                                            @Value("${hmdp.bloom.shop.expected-insertions:1000000}") long expectedInsertions,
+                                            @Value("${hmdp.bloom.shop.fpp:0.01}") double fpp) {
+        return new RedisBloomFilter(BLOOM_SHOP_KEY, expectedInsertions, fpp, stringRedisTemplate, redissonClient);
+    }
 }
@@ -0,0 +1,59 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.RedisBloomFilter;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存运维接口
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/cache")
+public class CacheAdminController {
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 查询店铺布隆过滤器状态
+     * @return 位数组长度、哈希函数个数、已置位数以及估算的误判率
+     */
+    @GetMapping("/bloom/shop")
+    public Result shopBloomFilterStats() {
+        return Result.ok(shopBloomFilter.stats());
+    }
+
+    /**
+     * 根据数据库在线重建店铺布隆过滤器
+     * @return 重建后的状态
+     */
+    @PostMapping("/bloom/shop/rebuild")
+    public Result rebuildShopBloomFilter() {
+        if (!shopService.rebuildBloomFilter()) {
+            return Result.fail("其他节点正在重建布隆过滤器，请稍后再试");
+        }
+        return Result.ok(shopBloomFilter.stats());
+    }
+
+    /**
+     * 查询当前的热点key
+     * @return 热点key及窗口内的估算访问次数，按访问次数倒序
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.hotKeys());
+    }
+}
@@ -0,0 +1,47 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherService;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 秒杀运维接口，不在登录拦截器的排除路径中，需要登录后才能调用
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/seckill")
+public class SeckillAdminController {
+    @Resource
+    private IVoucherService voucherService;
+
+    /**
+     * 补充秒杀券库存
+     * @param id 优惠券id
+     * @param amount 补充的数量
+     * @return 无
+     */
+    @PostMapping("/{id}/replenish")
+    public Result replenishSeckillStock(@PathVariable("id") Long id, @RequestParam("amount") Integer amount) {
+        return voucherService.replenishSeckillStock(id, amount);
+    }
+
+    /**
+     * 设置秒杀券抢购接口的限流速率
+     * @param id 优惠券id
+     * @param rate 所有节点合计每秒放行的请求数，小于等于0表示不限流
+     * @return 无
+     */
+    @PutMapping("/{id}/limit")
+    public Result setSeckillRateLimit(@PathVariable("id") Long id, @RequestParam("rate") Double rate) {
+        return voucherService.setSeckillRateLimit(id, rate);
+    }
+}
@@ -0,0 +1,34 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IShopService;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 商铺维护接口，不在登录拦截器的排除路径中，需要登录后才能调用
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/shop")
+public class ShopAdminController {
+    @Resource
+    private IShopService shopService;
+
+    /**
+     * 累加商铺的计数字段
+     * @param id 商铺id
+     * @param field 计数字段，sold或comments
+     * @param delta 增量，可以为负数
+     * @return 无
+     */
+    @PutMapping("/{id}/counter")
+    public Result incrementCounter(@PathVariable("id") Long id,
+                                   @RequestParam("field") String field,
+                                   @RequestParam(value = "delta", defaultValue = "1") Integer delta) {
+        return shopService.incrementCounter(id, field, delta);
+    }
+}
@@ -0,0 +1,51 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.IShopTypeService;
+import org.springframework.web.bind.annotation.*;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 店铺类型维护接口，不在登录拦截器的排除路径中，需要登录后才能调用
+ * </p>
+ */
+@RestController
+@RequestMapping("/admin/shop-type")
+public class ShopTypeAdminController {
+    @Resource
+    private IShopTypeService typeService;
+
+    /**
+     * 新增店铺类型
+     * @param shopType 店铺类型数据
+     * @return 店铺类型id
+     */
+    @PostMapping
+    public Result saveShopType(@RequestBody ShopType shopType) {
+        return typeService.saveShopType(shopType);
+    }
+
+    /**
+     * 更新店铺类型
+     * @param shopType 店铺类型数据
+     * @return 无
+     */
+    @PutMapping
+    public Result updateShopType(@RequestBody ShopType shopType) {
+        return typeService.updateShopType(shopType);
+    }
+
+    /**
+     * 删除店铺类型
+     * @param id 店铺类型id
+     * @return 无
+     */
+    @DeleteMapping("/{id}")
+    public Result deleteShopType(@PathVariable("id") Long id) {
+        return typeService.deleteShopType(id);
+    }
+}
@@ -0,0 +1,26 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import lombok.Value;
+
+import java.util.List;
+
+/**
+ * 店铺类型列表的不可变快照，响应体提前序列化好，节点之间按版本号整体替换
+ */
+@Value
+public class ShopTypeSnapshot {
+    /**
+     * 生成快照时redis中的版本号
+     */
+    long version;
+    List<ShopType> types;
+    /**
+     * 序列化好的Result响应体
+     */
+    byte[] body;
+    /**
+     * 响应体的摘要，带双引号，直接作为ETag响应头
+     */
+    String etag;
+}
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -18,5 +20,20 @@ public interface IShopService extends IService<Shop> {
 
     Result update(Shop shop);
 
+    /**
+     * 累加店铺的计数字段(sold、comments)，hash缓存期间没有被重新加载时直接累加缓存中的字段，否则删除缓存
+     */
+    Result incrementCounter(Long id, String field, int delta);
+
     Result queryShopByType(Integer typeId, Integer current, Double x, Double y);
+
+    Result queryShopByIds(List<Long> ids);
+
+    Result saveShop(Shop shop);
+
+    /**
+     * 根据数据库重建店铺布隆过滤器
+     * @return false表示其他节点正在重建
+     */
+    boolean rebuildBloomFilter();
 }
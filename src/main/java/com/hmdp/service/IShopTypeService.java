@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -15,4 +16,15 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result queryTypeList();
+
+    /**
+     * 当前店铺类型快照，包含序列化好的响应体和ETag
+     */
+    ShopTypeSnapshot getSnapshot();
+
+    Result saveShopType(ShopType shopType);
+
+    Result updateShopType(ShopType shopType);
+
+    Result deleteShopType(Long id);
 }
@@ -17,4 +17,9 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     Result createVoucherOrder(Long voucherId);
+
+    /**
+     * 当前用户是否抢到过这张秒杀券，查询redis中的购买用户集合
+     */
+    Result hasBought(Long voucherId);
 }
@@ -17,4 +17,14 @@ public interface IVoucherService extends IService<Voucher> {
     Result queryVoucherOfShop(Long shopId);
 
     void addSeckillVoucher(Voucher voucher);
+
+    /**
+     * 补充秒杀券库存，同时清除各节点的售罄标记
+     */
+    Result replenishSeckillStock(Long voucherId, Integer amount);
+
+    /**
+     * 设置秒杀券抢购接口的总速率，每秒请求数，小于等于0表示不限流
+     */
+    Result setSeckillRateLimit(Long voucherId, Double rate);
 }
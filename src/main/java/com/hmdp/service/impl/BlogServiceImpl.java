@@ -15,6 +15,7 @@ import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheMetrics;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -48,6 +49,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     StringRedisTemplate stringRedisTemplate;
     @Resource
     private IFollowService followService;
+    @Resource
+    private CacheMetrics cacheMetrics;
 
     @Override
     public Result queryBlogById(Long id) {
@@ -126,8 +129,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         String key = BLOG_LIKED_KEY + id;
         Set<String> topFiveUsers = stringRedisTemplate.opsForZSet().range(key, 0, 4);
         if (topFiveUsers == null || topFiveUsers.isEmpty()) {
+            cacheMetrics.request(BLOG_LIKED_KEY, CacheMetrics.EMPTY);
             return Result.ok(Collections.emptyList());
         }
+        cacheMetrics.request(BLOG_LIKED_KEY, CacheMetrics.HIT);
         //2.解析出前五名的用户id
         List<Long> ids = topFiveUsers.stream().map(Long::valueOf).collect(Collectors.toList());
         String idStr = StrUtil.join(",", ids);//拼接下面FIELD函数要用的id字符串
@@ -171,8 +176,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         Set<ZSetOperations.TypedTuple<String>> typedTuples =
                 stringRedisTemplate.opsForZSet().reverseRangeByScoreWithScores(key, 0, max, offset, 3);
         if (typedTuples == null || typedTuples.isEmpty()) {
+            cacheMetrics.request(FEED_KEY, CacheMetrics.EMPTY);
             return Result.ok();
         }
+        cacheMetrics.request(FEED_KEY, CacheMetrics.HIT);
         ArrayList<Long> ids = new ArrayList<>(typedTuples.size());
         //3.解析数据：blogId,minTime（时间戳）,offset
         int os=1;
@@ -4,6 +4,7 @@ import cn.hutool.core.util.BooleanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
@@ -11,8 +12,11 @@ import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.RedisBloomFilter;
 import com.hmdp.utils.RedisData;
 import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.geo.Distance;
 import org.springframework.data.geo.GeoResult;
 import org.springframework.data.geo.GeoResults;
@@ -22,15 +26,20 @@ import org.springframework.data.redis.domain.geo.GeoReference;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -42,12 +51,51 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
+    /**
+     * 列表卡片展示需要的字段，不读取图片、地址等大字段
+     */
+    private static final List<String> SHOP_CARD_FIELDS = Arrays.asList(
+            "id", "name", "typeId", "area", "avgPrice", "sold", "comments", "score", "x", "y");
+    /**
+     * 允许单独累加的计数字段 -> 数据库列名
+     */
+    private static final Map<String, String> SHOP_COUNTER_COLUMNS = new HashMap<>();
+
+    static {
+        SHOP_COUNTER_COLUMNS.put("sold", "sold");
+        SHOP_COUNTER_COLUMNS.put("comments", "comments");
+    }
     @Resource
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private RedisBloomFilter shopBloomFilter;
+    @Resource
+    private CacheInvalidator cacheInvalidator;
+    @Resource
+    private ExecutorService cacheRebuildExecutor;
+
+    @PostConstruct
+    private void initBloomFilter() {
+        try {
+            //redis中还没有过滤器就根据数据库全量构建，否则只需要加载本地镜像；
+            //其他节点正在构建时跳过，本地镜像加载之前过滤器全部放行，等那边广播重建完成后再加载
+            if (shopBloomFilter.exists()) {
+                shopBloomFilter.syncFromRedis();
+            } else {
+                rebuildBloomFilter();
+            }
+            cacheClient.registerBloomFilter(CACHE_SHOP_KEY, shopBloomFilter);
+            cacheClient.registerBloomFilter(CACHE_SHOP_HASH_KEY, shopBloomFilter);
+        } catch (Exception e) {
+            //过滤器不可用时不拦截请求，退化为缓存空值
+            log.error("店铺布隆过滤器初始化失败", e);
+        }
+    }
     @Override
     public Result queryShopById(Long id) {
         Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById
@@ -66,11 +114,66 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         //1.更新数据库
         updateById(shop);
-        //2.删除缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY+id);
+        //2.事务提交后再删除缓存并延迟双删，同时广播让其他节点清掉一级缓存
+        cacheInvalidator.invalidate(CACHE_SHOP_KEY+id);
+        cacheInvalidator.invalidate(CACHE_SHOP_HASH_KEY+id);
         return Result.ok();
     }
 
+    @Override
+    @Transactional
+    public Result incrementCounter(Long id, String field, int delta) {
+        String column = SHOP_COUNTER_COLUMNS.get(field);
+        if (column == null) {
+            return Result.fail("不支持的计数字段:" + field);
+        }
+        //1.修改数据库之前记下hash缓存的版本
+        String key = CACHE_SHOP_HASH_KEY + id;
+        String version = cacheClient.hashVersion(key);
+        //2.更新数据库
+        boolean success = update().setSql(column + " = " + column + " + " + delta).eq("id", id).update();
+        if (!success) {
+            return Result.fail("店铺不存在");
+        }
+        //3.事务提交后版本没变就直接累加hash缓存中的字段，不需要让整条缓存失效；
+        //  版本变了说明期间被重新加载过，可能已经包含这次修改，改为删除缓存并延迟双删；json格式的详情缓存等逻辑过期后再刷新
+        cacheInvalidator.updateOrInvalidate(key, () -> cacheClient.incrementHash(key, field, delta, version) != null);
+        return Result.ok();
+    }
+
+    @Override
+    public Result queryShopByIds(List<Long> ids) {
+        if (ids.size() > SystemConstants.MAX_BATCH_SIZE) {
+            return Result.fail("一次最多查询" + SystemConstants.MAX_BATCH_SIZE + "个店铺");
+        }
+        return Result.ok(queryShopsWithCache(ids));
+    }
+
+    /**
+     * 批量走缓存查询店铺，按ids的顺序返回
+     */
+    private List<Shop> queryShopsWithCache(List<Long> ids) {
+        return cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class, this::loadShops, LOCK_SHOP_TTL, TimeUnit.SECONDS);
+    }
+
+    private Map<Long, Shop> loadShops(Collection<Long> ids) {
+        return listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+    }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        //1.写入数据库
+        save(shop);
+        //2.加入布隆过滤器，否则新店铺会被当成不存在的数据拦截
+        shopBloomFilter.put(shop.getId());
+        return Result.ok(shop.getId());
+    }
+
+    @Override
+    public boolean rebuildBloomFilter() {
+        return shopBloomFilter.rebuild(() -> listObjs(new QueryWrapper<Shop>().select("id"), id -> Long.valueOf(id.toString())));
+    }
+
     @Override
     public Result queryShopByType(Integer typeId, Integer current, Double x, Double y) {
         //1.判断是否需要更加坐标查询
@@ -110,13 +213,11 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             Distance distance = result.getDistance();
             distanceHashMap.put(shopId,distance);
         });
-        //5.根据id查询店铺
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids).last("ORDER BY FIELD (id," + idStr + ")").list();
-        //给每个店铺设置距离信息
-        for (Shop shop : shops) {
-            shop.setDistance(distanceHashMap.get(shop.getId().toString()).getValue());
-        }
+        //5.根据id批量查询店铺缓存，只读取列表卡片需要的字段，未命中的一次查库
+        List<Shop> shops = cacheClient.queryHashBatch(CACHE_SHOP_HASH_KEY, ids, Shop.class, SHOP_CARD_FIELDS,
+                this::loadShops, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //每次查询都会创建新对象，可以直接设置距离信息
+        shops.forEach(shop -> shop.setDistance(distanceHashMap.get(shop.getId().toString()).getValue()));
         return Result.ok(shops);
     }
 
@@ -165,7 +266,6 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         return shop;
     }
-    private static final ExecutorService threadPool= Executors.newFixedThreadPool(10);
     //基于逻辑过期时间解决缓存击穿
     public Shop queryWithLogicalExpire(Long id)  {
         //1.从redis查询商铺缓存
@@ -192,7 +292,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         boolean isLock = tryLock(lockKey);
         if(isLock){
             //获取锁成功就开启异步线程完成缓存重建
-            threadPool.submit(()->{
+            cacheRebuildExecutor.submit(()->{
                 try {
                     this.saveShopRedis(id,20L);
                 } catch (Exception e) {
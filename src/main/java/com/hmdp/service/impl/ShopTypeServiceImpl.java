@@ -1,18 +1,36 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.crypto.digest.DigestUtil;
 import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.ClientSideCache;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.*;
+
 /**
  * <p>
  * 服务实现类
@@ -21,34 +39,160 @@ import java.util.stream.Collectors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    CacheMetrics cacheMetrics;
+    @Resource
+    ClientSideCache clientSideCache;
+    @Resource
+    CacheInvalidator cacheInvalidator;
+    @Resource
+    ObjectMapper objectMapper;
+    private static final DefaultRedisScript<Long> WRITE_BACK_SCRIPT;
+
+    static {
+        WRITE_BACK_SCRIPT = new DefaultRedisScript<>();
+        WRITE_BACK_SCRIPT.setLocation(new ClassPathResource("shopType.lua"));
+        WRITE_BACK_SCRIPT.setResultType(Long.class);
+    }
+    /**
+     * 当前快照，整体替换，读请求不加锁
+     */
+    private volatile ShopTypeSnapshot snapshot;
+
     @Override
     public Result queryTypeList() {
-        //1.从redis查询出所有的商铺类别
-        List<ShopType> typeList = stringRedisTemplate.opsForList().
-                range("typeList", 0, -1).stream().map(type -> {
-                    return JSONUtil.toBean(type, ShopType.class);
-                }).collect(Collectors.toList());
-        //2.判断商铺信息是否存在
-        if(typeList!=null&&typeList.size()>0){
-            //3.存在就直接返回缓存数据
-            return Result.ok(typeList);
-        }
-        //4.不存在就根据id去数据库中查
-        typeList = query().orderByAsc("sort").list();
-        //5.如果数据库不存在就返回错误信息
-        if(typeList==null&&typeList.size()==0){
+        ShopTypeSnapshot current = getSnapshot();
+        if (current.getTypes().isEmpty()) {
             return Result.fail("没有定义商铺类别信息！！！");
         }
-        //6.存在就写回到redis
-        stringRedisTemplate.opsForList().rightPushAll("typeList",typeList.stream().map(
-                shopType -> {
-                    return JSONUtil.toJsonStr(shopType);
+        return Result.ok(current.getTypes());
+    }
+
+    @Override
+    public ShopTypeSnapshot getSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current != null) {
+            cacheMetrics.request(SHOP_TYPE_KEY, CacheMetrics.LOCAL_HIT);
+            return current;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                snapshot = loadSnapshot(currentVersion());
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * 定时检查redis中的版本号，变化了就重新加载快照
+     */
+    @Scheduled(fixedDelayString = "${hmdp.shop-type.poll-interval:1000}")
+    public void refreshSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        if (current == null) {
+            return;
+        }
+        try {
+            long version = currentVersion();
+            if (version != current.getVersion()) {
+                synchronized (this) {
+                    snapshot = loadSnapshot(version);
                 }
-        ).collect(Collectors.toList()));
-        return Result.ok(typeList);
+                log.info("店铺类型快照已更新，版本:{}", version);
+            }
+        } catch (Exception e) {
+            log.error("刷新店铺类型快照失败", e);
+        }
+    }
+
+    @Override
+    @Transactional
+    public Result saveShopType(ShopType shopType) {
+        save(shopType);
+        bumpVersion();
+        return Result.ok(shopType.getId());
+    }
+
+    @Override
+    @Transactional
+    public Result updateShopType(ShopType shopType) {
+        if (shopType.getId() == null) {
+            return Result.fail("店铺类型id不能为空");
+        }
+        updateById(shopType);
+        bumpVersion();
+        return Result.ok();
+    }
+
+    @Override
+    @Transactional
+    public Result deleteShopType(Long id) {
+        removeById(id);
+        bumpVersion();
+        return Result.ok();
+    }
+
+    /**
+     * 事务提交之后删除redis中的列表并递增版本号，各节点轮询到新版本后重新加载
+     */
+    private void bumpVersion() {
+        cacheInvalidator.afterCommit(() -> {
+            stringRedisTemplate.delete(SHOP_TYPE_KEY);
+            stringRedisTemplate.opsForValue().increment(SHOP_TYPE_VERSION_KEY);
+        });
+    }
+
+    private long currentVersion() {
+        String version = stringRedisTemplate.opsForValue().get(SHOP_TYPE_VERSION_KEY);
+        return version == null ? 0 : Long.parseLong(version);
+    }
+
+    private ShopTypeSnapshot loadSnapshot(long version) {
+        //1.从redis查询出所有的商铺类别
+        List<String> cached = clientSideCache.range(SHOP_TYPE_KEY);
+        List<ShopType> typeList;
+        //2.判断商铺信息是否存在
+        if (cached != null && !cached.isEmpty()) {
+            //3.存在就直接使用缓存数据
+            cacheMetrics.request(SHOP_TYPE_KEY, CacheMetrics.HIT);
+            typeList = cached.stream().map(type -> JSONUtil.toBean(type, ShopType.class)).collect(Collectors.toList());
+        } else {
+            //4.不存在就去数据库中查
+            cacheMetrics.request(SHOP_TYPE_KEY, CacheMetrics.MISS);
+            long begin = System.currentTimeMillis();
+            typeList = query().orderByAsc("sort").list();
+            cacheMetrics.rebuild(SHOP_TYPE_KEY, System.currentTimeMillis() - begin);
+            //5.存在就写回到redis，查询期间版本号变化说明读到的可能是旧数据，不写回
+            if (!typeList.isEmpty()) {
+                writeBack(typeList, version);
+            }
+        }
+        return buildSnapshot(version, typeList);
+    }
+
+    private void writeBack(List<ShopType> typeList, long version) {
+        List<String> args = new ArrayList<>(typeList.size() + 2);
+        args.add(String.valueOf(version));
+        args.add(String.valueOf(TimeUnit.HOURS.toSeconds(SHOP_TYPE_TTL)));
+        typeList.forEach(shopType -> args.add(JSONUtil.toJsonStr(shopType)));
+        stringRedisTemplate.execute(WRITE_BACK_SCRIPT,
+                Arrays.asList(SHOP_TYPE_KEY, SHOP_TYPE_VERSION_KEY), args.toArray());
+    }
+
+    private ShopTypeSnapshot buildSnapshot(long version, List<ShopType> typeList) {
+        List<ShopType> types = Collections.unmodifiableList(new ArrayList<>(typeList));
+        Result result = types.isEmpty() ? Result.fail("没有定义商铺类别信息！！！") : Result.ok(types);
+        try {
+            //和接口返回时使用同一个ObjectMapper，保证序列化结果一致
+            byte[] body = objectMapper.writeValueAsBytes(result);
+            return new ShopTypeSnapshot(version, types, body, "\"" + DigestUtil.md5Hex(body) + "\"");
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("序列化店铺类型失败", e);
+        }
     }
 }
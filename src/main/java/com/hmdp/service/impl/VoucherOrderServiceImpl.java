@@ -7,14 +7,23 @@ import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.BuyerSet;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.OrderTimeoutWheel;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillBuckets;
+import com.hmdp.utils.SeckillPreloader;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SoldOutMarker;
 import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.VoucherOrderQueue;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
@@ -22,12 +31,19 @@ import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -48,12 +64,36 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     RedissonClient redissonClient;
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SeckillBuckets seckillBuckets;
+    @Resource
+    SoldOutMarker soldOutMarker;
+    @Resource
+    SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    SeckillPreloader seckillPreloader;
+    @Resource
+    BuyerSet buyerSet;
+    @Resource
+    OrderTimeoutWheel orderTimeoutWheel;
+    @Resource
+    CacheInvalidator cacheInvalidator;
     private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> STOCK_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+    private static final int ORDER_UNPAID = 1;
+    private static final int ORDER_CANCELLED = 4;
 
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
         SECKILL_SCRIPT.setResultType(Long.class);
+        STOCK_SCRIPT = new DefaultRedisScript<>();
+        STOCK_SCRIPT.setLocation(new ClassPathResource("seckillStock.lua"));
+        STOCK_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("releaseStock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
     }
 //    private BlockingQueue<VoucherOrder> orderTasks=new ArrayBlockingQueue<>(1024*1024);
 //    private static final ExecutorService SECKILL_ORDER_EXECTOR= Executors.newSingleThreadExecutor();
@@ -101,34 +141,241 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
                     //======判断当前库存是否大于0就可以决定是否能抢池子中的券了
                     .gt("stock", 0)
                     .update();
-            //3.创建订单
+            //3.创建订单，未支付超时后取消
+            orderTimeoutWheel.schedule(Collections.singletonList(voucherOrder));
             save(voucherOrder);
         }
+    /**
+     * 批量写入订单：按优惠券分组，每张券一条stock=stock-k的更新，所有订单一条insert，在同一个事务中完成
+     */
+    @Transactional
+    public void handleVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //1.按优惠券统计本批订单数量
+        Map<Long, Long> counts = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        //2.每张券扣减一次库存，库存不够时整批回滚，由调用方逐条处理
+        counts.forEach((voucherId, count) -> {
+            boolean success = seckillVoucherService.update().setSql("stock=stock-" + count)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", count)
+                    .update();
+            if (!success) {
+                throw new IllegalStateException("优惠券" + voucherId + "库存不足" + count);
+            }
+        });
+        //3.一条insert写入所有订单，先加入超时时间轮，事务回滚时到期的订单在数据库中不存在，取消时会跳过
+        orderTimeoutWheel.schedule(voucherOrders);
+        getBaseMapper().insertBatch(voucherOrders);
+    }
+
+    /**
+     * 取消超时未支付的订单：锁住仍未支付的订单改为已取消并归还数据库库存，
+     * 提交后在redis中归还库存、把用户移出购买用户集合并清除售罄标记；期间已经支付的订单不受影响
+     */
+    @Transactional
+    public void cancelUnpaidOrders(List<VoucherOrder> voucherOrders) {
+        //1.锁住其中仍未支付的订单
+        List<Long> ids = voucherOrders.stream().map(VoucherOrder::getId).collect(Collectors.toList());
+        List<VoucherOrder> unpaid = query().select("id", "user_id", "voucher_id")
+                .in("id", ids)
+                .eq("status", ORDER_UNPAID)
+                .last("for update")
+                .list();
+        if (unpaid.isEmpty()) {
+            return;
+        }
+        //2.一条update改为已取消
+        update().set("status", ORDER_CANCELLED)
+                .in("id", unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .update();
+        //3.每张券一条update归还数据库库存
+        Map<Long, Long> counts = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        counts.forEach((voucherId, count) -> seckillVoucherService.update()
+                .setSql("stock=stock+" + count)
+                .eq("voucher_id", voucherId)
+                .update());
+        //4.提交之后归还redis库存，失败的放入重试队列
+        cacheInvalidator.afterCommit(() -> {
+            List<VoucherOrder> failed = releaseStock(unpaid);
+            if (failed.isEmpty()) {
+                return;
+            }
+            try {
+                orderTimeoutWheel.retryRelease(failed);
+            } catch (Exception e) {
+                log.error("{}个订单的redis库存放入重试队列失败", failed.size(), e);
+            }
+        });
+        log.info("取消了{}个超时未支付的订单", unpaid.size());
+    }
+
+    /**
+     * 在redis中归还已取消订单的库存，脚本是幂等的，重试时已经归还过的订单不会重复归还
+     * @return 归还失败的订单
+     */
+    public List<VoucherOrder> releaseStock(List<VoucherOrder> cancelled) {
+        List<VoucherOrder> failed = new ArrayList<>();
+        for (VoucherOrder order : cancelled) {
+            //库存还给用户所在的桶，和移出购买用户集合在同一个脚本中完成
+            Long voucherId = order.getVoucherId();
+            Long userId = order.getUserId();
+            int home = seckillBuckets.homeBucket(voucherId, userId);
+            try {
+                stringRedisTemplate.execute(RELEASE_SCRIPT,
+                        Arrays.asList(seckillBuckets.stockKey(voucherId, home),
+                                buyerSet.key(seckillBuckets.orderKey(voucherId, home), userId)),
+                        buyerSet.mode(), buyerSet.member(userId));
+            } catch (Exception e) {
+                log.error("归还订单{}的redis库存失败", order.getId(), e);
+                failed.add(order);
+            }
+        }
+        //有了库存，清除各节点的售罄标记
+        cancelled.stream().map(VoucherOrder::getVoucherId).distinct().forEach(soldOutMarker::clear);
+        return failed;
+    }
     @Resource
-    RabbitTemplate rabbitTemplate;
+    VoucherOrderQueue voucherOrderQueue;
+    /**
+     * 使用redis stream队列时，由秒杀脚本同时分配订单序列号，抢购只访问一次redis
+     */
+    @Value("${hmdp.seckill.single-round-trip:false}")
+    private boolean singleRoundTrip;
+
+    /**
+     * 启动时把脚本加载到redis，抢购时直接EVALSHA，不会因为NOSCRIPT再多一次EVAL；redis重启后由spring回退为EVAL
+     */
+    @PostConstruct
+    private void loadScripts() {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.scriptingCommands().scriptLoad(SECKILL_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                connection.scriptingCommands().scriptLoad(STOCK_SCRIPT.getScriptAsString().getBytes(StandardCharsets.UTF_8));
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("预加载秒杀脚本失败，第一次抢购时再加载", e);
+        }
+    }
     @Override
     public Result seckillVoucher(Long voucherId) {
-        //1.执行lua脚本，判断当前用户的购买资格
+        //0.本地判断秒杀时间和售罄标记，不满足的直接返回，不访问redis
+        int state = seckillPreloader.check(voucherId);
+        if (state != SeckillPreloader.OPEN) {
+            return Result.fail(state == SeckillPreloader.NOT_STARTED ? "秒杀尚未开始!" : "秒杀已经结束!");
+        }
+        if (soldOutMarker.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
+        //0.1超过用户或这张券的限流速率，直接让用户稍后再试，保护redis和消息队列
         Long userId = UserHolder.getUser().getId();
+        if (!seckillRateLimiter.tryAcquire(voucherId, userId)) {
+            return Result.fail("活动太火爆，请稍后再试");
+        }
+        //1.执行lua脚本，判断当前用户的购买资格，分桶时先在用户所在的桶中抢
+        //使用redis stream队列时由脚本在扣减库存的同时写入订单，开启单次往返时订单序列号也由脚本分配
+        String queueKey = voucherOrderQueue.scriptQueueKey();
+        boolean scriptAllocatesId = singleRoundTrip && queueKey != null;
+        long nowSecond = RedisIdWorker.nowSecond();
+        //订单id只在脚本需要写入队列时提前生成，否则抢到之后再生成，没有资格的请求不消耗序列号
+        long orderId = queueKey != null && !scriptAllocatesId ? redisIdWorker.nextId("order") : 0;
+        int home = seckillBuckets.homeBucket(voucherId, userId);
+        List<String> keys = new ArrayList<>(4);
+        keys.add(seckillBuckets.stockKey(voucherId, home));
+        keys.add(buyerSet.key(seckillBuckets.orderKey(voucherId, home), userId));
+        keys.add(seckillBuckets.windowKey(voucherId, home));
+        if (queueKey != null) {
+            keys.add(queueKey);
+        }
+        if (scriptAllocatesId) {
+            keys.add(redisIdWorker.sequenceKey("order", nowSecond));
+        }
         Long result = stringRedisTemplate.execute(
                 SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(), userId.toString());
+                keys,
+                userId.toString(), voucherId.toString(), String.valueOf(orderId),
+                String.valueOf(RedisIdWorker.timestamp(nowSecond)),
+                buyerSet.mode(), buyerSet.member(userId), String.valueOf(buyerSet.arrayMax()));
+        if (result < 0) {
+            //1.0脚本返回的是负的序列号，拼接出订单id
+            orderId = RedisIdWorker.compose(RedisIdWorker.timestamp(nowSecond), -result);
+            result = 0L;
+        }
+        if (result == 1 && seckillBuckets.bucketCount(voucherId) > 1) {
+            //1.1用户所在的桶已经抢完，再去其他桶抢，其他桶的脚本不分配序列号，需要写入队列时这里单独生成订单id
+            if (queueKey != null && orderId == 0) {
+                orderId = redisIdWorker.nextId("order");
+            }
+            result = seckillFromOtherBuckets(voucherId, userId, orderId, home, queueKey);
+        }
+        if (result == 1) {
+            //1.2所有桶都没有库存，标记售罄并通知其他节点
+            soldOutMarker.markSoldOut(voucherId);
+        }
         if (result != 0) {
             //2.不为0说明没有购买资格
-            return Result.fail(result==1?"库存不足":"不能重复下单");
+            return Result.fail(seckillFailMessage(result));
+        }
+        //3.走到这一步说明有购买资格，脚本不写队列时订单id还没有生成
+        if (queueKey == null) {
+            orderId = redisIdWorker.nextId("order");
         }
-        //3.走到这一步说明有购买资格，将订单信息存到阻塞队列
         VoucherOrder voucherOrder = new VoucherOrder();
-        long orderId = redisIdWorker.nextId("order");
         voucherOrder.setId(orderId);
-        voucherOrder.setUserId(UserHolder.getUser().getId());
+        voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
-        //存入消息队列等待异步消费
-        rabbitTemplate.convertAndSend("seckill.direct","seckill.order",voucherOrder);
+        voucherOrderQueue.afterScript(voucherOrder);
         return Result.ok(orderId);
     }
 
+    private static String seckillFailMessage(long result) {
+        switch ((int) result) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 3:
+                return "秒杀尚未开始!";
+            default:
+                return "秒杀已经结束!";
+        }
+    }
+
+    /**
+     * 用户所在的桶没有库存时，先在这个桶的订单集合中占位保证一人一单，再从随机位置开始依次尝试其他桶，
+     * 所有桶都没有库存就撤销占位
+     * @return 0成功，1库存不足，2重复下单
+     */
+    private long seckillFromOtherBuckets(Long voucherId, Long userId, long orderId, int home, String queueKey) {
+        String orderKey = seckillBuckets.orderKey(voucherId, home);
+        if (!buyerSet.add(orderKey, userId)) {
+            return 2;
+        }
+        int others = seckillBuckets.bucketCount(voucherId) - 1;
+        int offset = ThreadLocalRandom.current().nextInt(others);
+        for (int i = 0; i < others; i++) {
+            int bucket = (home + 1 + (offset + i) % others) % (others + 1);
+            String stockKey = seckillBuckets.stockKey(voucherId, bucket);
+            Long taken = stringRedisTemplate.execute(STOCK_SCRIPT,
+                    queueKey == null ? Collections.singletonList(stockKey) : Arrays.asList(stockKey, queueKey),
+                    userId.toString(), voucherId.toString(), String.valueOf(orderId));
+            if (taken != null && taken == 0) {
+                return 0;
+            }
+        }
+        buyerSet.remove(orderKey, userId);
+        return 1;
+    }
+
+    @Override
+    public Result hasBought(Long voucherId) {
+        //一人一单的记录始终在用户所在的桶中
+        Long userId = UserHolder.getUser().getId();
+        String orderKey = seckillBuckets.orderKey(voucherId, seckillBuckets.homeBucket(voucherId, userId));
+        return Result.ok(buyerSet.contains(orderKey, userId));
+    }
+
     public Result seckillVoucherNoWithLua(Long voucherId) {
         //1.查询优惠券信息
         SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
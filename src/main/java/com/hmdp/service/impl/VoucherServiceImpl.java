@@ -7,6 +7,11 @@ import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.CacheInvalidator;
+import com.hmdp.utils.SeckillBuckets;
+import com.hmdp.utils.SeckillPreloader;
+import com.hmdp.utils.SeckillRateLimiter;
+import com.hmdp.utils.SoldOutMarker;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -14,7 +19,6 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.annotation.Resource;
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
 
 /**
  * <p>
@@ -31,6 +35,16 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SeckillBuckets seckillBuckets;
+    @Resource
+    SoldOutMarker soldOutMarker;
+    @Resource
+    CacheInvalidator cacheInvalidator;
+    @Resource
+    SeckillRateLimiter seckillRateLimiter;
+    @Resource
+    SeckillPreloader seckillPreloader;
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -51,7 +65,39 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀库存到Redis
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        //保存秒杀库存到Redis，开启分桶时库存平均分配到各个桶
+        seckillBuckets.initStock(voucher.getId(), voucher.getStock());
+        //保存秒杀时间窗口，抢购时在脚本中判断
+        seckillPreloader.loadWindow(seckillVoucher);
+    }
+
+    @Override
+    @Transactional
+    public Result replenishSeckillStock(Long voucherId, Integer amount) {
+        if (amount == null || amount <= 0) {
+            return Result.fail("补充的库存必须大于0");
+        }
+        //1.增加数据库库存
+        boolean success = seckillVoucherService.update().setSql("stock = stock + " + amount)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!success) {
+            return Result.fail("秒杀券不存在");
+        }
+        //2.事务提交后增加redis库存，并清除所有节点的售罄标记
+        cacheInvalidator.afterCommit(() -> {
+            seckillBuckets.addStock(voucherId, amount);
+            soldOutMarker.clear(voucherId);
+        });
+        return Result.ok();
+    }
+
+    @Override
+    public Result setSeckillRateLimit(Long voucherId, Double rate) {
+        if (rate == null) {
+            return Result.fail("速率不能为空");
+        }
+        seckillRateLimiter.setVoucherRate(voucherId, rate);
+        return Result.ok();
     }
 }
@@ -0,0 +1,123 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 紧凑的二进制格式：
+ * <pre>
+ * | 魔数(1) | 版本(1) | 标志位(1) | 逻辑过期时间戳(8) | 数据体 |
+ * </pre>
+ * 过期时间在固定位置，读取时不需要解析数据体；数据体由jackson一次性反序列化成目标类型，
+ * 超过阈值时使用deflate压缩
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+    private static final byte MAGIC = (byte) 0xCB;
+    private static final byte VERSION = 1;
+    private static final byte FLAG_COMPRESSED = 1;
+    private static final int HEADER_LENGTH = 11;
+    @Resource
+    private ObjectMapper objectMapper;
+    @Value("${hmdp.cache.codec-compress-threshold:512}")
+    private int compressThreshold;
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public byte[] encode(Object value, long expireAt) {
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存数据序列化失败", e);
+        }
+        byte flags = 0;
+        if (body.length > compressThreshold) {
+            byte[] compressed = compress(body);
+            //压缩后反而变大就不压缩
+            if (compressed.length < body.length) {
+                body = compressed;
+                flags |= FLAG_COMPRESSED;
+            }
+        }
+        return ByteBuffer.allocate(HEADER_LENGTH + body.length)
+                .put(MAGIC).put(VERSION).put(flags)
+                .putLong(expireAt)
+                .put(body)
+                .array();
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes.length >= HEADER_LENGTH && bytes[0] == MAGIC && bytes[1] == VERSION;
+    }
+
+    @Override
+    public long readExpireAt(byte[] bytes) {
+        return ByteBuffer.wrap(bytes, 3, 8).getLong();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        byte[] body = Arrays.copyOfRange(bytes, HEADER_LENGTH, bytes.length);
+        if ((bytes[2] & FLAG_COMPRESSED) != 0) {
+            body = decompress(body);
+        }
+        try {
+            return objectMapper.readValue(body, type);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存数据反序列化失败", e);
+        }
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("缓存数据不完整");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("缓存数据解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
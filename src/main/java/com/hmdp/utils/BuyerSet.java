@@ -0,0 +1,97 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+
+/**
+ * 秒杀券的购买用户集合，用于一人一单，通过hmdp.seckill.buyer-set选择存储方式：
+ * set：用户id字符串组成的SET，兼容原来的数据；
+ * bitmap：以用户id为偏移的位图，适合连续自增的用户id，要求id小于2^32；
+ * roaring：按用户id的高位分段，每段一个key，段内用户少时用整数SET，超过array-max后转成65536位的位图，适合稀疏的用户id。
+ * 切换存储方式前要等进行中的秒杀结束，否则已经写入的购买记录查不到
+ */
+@Component
+public class BuyerSet {
+    public static final String SET = "set";
+    public static final String BITMAP = "bitmap";
+    public static final String ROARING = "roaring";
+    private static final int SEGMENT_BITS = 16;
+    private static final DefaultRedisScript<Long> BUYER_SET_SCRIPT;
+
+    static {
+        BUYER_SET_SCRIPT = new DefaultRedisScript<>();
+        BUYER_SET_SCRIPT.setLocation(new ClassPathResource("buyerSet.lua"));
+        BUYER_SET_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.seckill.buyer-set.mode:set}")
+    private String mode;
+    @Value("${hmdp.seckill.buyer-set.array-max:512}")
+    private int arrayMax;
+
+    @PostConstruct
+    private void init() {
+        mode = mode.toLowerCase();
+        if (!SET.equals(mode) && !BITMAP.equals(mode) && !ROARING.equals(mode)) {
+            throw new IllegalStateException("不支持的购买用户集合存储方式:" + mode);
+        }
+    }
+
+    public String mode() {
+        return mode;
+    }
+
+    public int arrayMax() {
+        return arrayMax;
+    }
+
+    /**
+     * 用户所在的key，roaring模式下在订单key后拼接段号，分桶的hash tag保持不变
+     */
+    public String key(String orderKey, long userId) {
+        return ROARING.equals(mode) ? orderKey + ":" + (userId >>> SEGMENT_BITS) : orderKey;
+    }
+
+    /**
+     * 用户在集合中的成员
+     */
+    public String member(long userId) {
+        if (ROARING.equals(mode)) {
+            return String.valueOf(userId & ((1 << SEGMENT_BITS) - 1));
+        }
+        if (BITMAP.equals(mode) && (userId < 0 || userId >= 1L << 32)) {
+            throw new IllegalArgumentException("bitmap模式的用户id必须小于2^32:" + userId);
+        }
+        return String.valueOf(userId);
+    }
+
+    /**
+     * @return true表示新加入，false表示已经存在
+     */
+    public boolean add(String orderKey, long userId) {
+        return execute("add", orderKey, userId) == 1;
+    }
+
+    public void remove(String orderKey, long userId) {
+        execute("remove", orderKey, userId);
+    }
+
+    public boolean contains(String orderKey, long userId) {
+        return execute("contains", orderKey, userId) == 1;
+    }
+
+    private long execute(String op, String orderKey, long userId) {
+        Long result = stringRedisTemplate.execute(BUYER_SET_SCRIPT, Collections.singletonList(key(orderKey, userId)),
+                op, mode, member(userId), String.valueOf(arrayMax));
+        return result == null ? 0 : result;
+    }
+}
@@ -1,118 +1,622 @@
 package com.hmdp.utils;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.date.LocalDateTimeUtil;
 import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.ReflectUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
 @Slf4j
 @Component
 public class CacheClient {
+    /**
+     * hash结构缓存的状态字段：1表示缓存了完整数据，0表示数据库中不存在
+     */
+    private static final String HASH_STATE_FIELD = "_state";
+    private static final String HASH_STATE_EXISTS = "1";
+    private static final String HASH_STATE_NULL = "0";
+    /**
+     * hash结构缓存的版本字段，每次整体写入时生成新值，用来判断累加字段期间缓存有没有被重新加载
+     */
+    private static final String HASH_VERSION_FIELD = "_ver";
+    private static final DefaultRedisScript<Long> HINCR_SCRIPT;
+
+    static {
+        HINCR_SCRIPT = new DefaultRedisScript<>();
+        HINCR_SCRIPT.setLocation(new ClassPathResource("hincrIfExists.lua"));
+        HINCR_SCRIPT.setResultType(Long.class);
+    }
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.cache.local.enabled:false}")
+    private boolean localCacheEnabled;
+    @Value("${hmdp.cache.local.capacity:10000}")
+    private int localCacheCapacity;
+    @Value("${hmdp.cache.local.ttl:5000}")
+    private long localCacheTtl;
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+    @Resource
+    private List<CacheCodec> codecs;
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter;
+    @Value("${hmdp.cache.early-refresh.enabled:false}")
+    private boolean earlyRefreshEnabled;
+    @Value("${hmdp.cache.early-refresh.beta:1.0}")
+    private double earlyRefreshBeta;
+    /**
+     * key前缀 -> 最近重建耗时的指数加权平均值(毫秒)，作为XFetch算法的delta
+     */
+    private final Map<String, Long> rebuildCost = new ConcurrentHashMap<>();
+    /**
+     * 写入逻辑过期数据使用的编码器，读取时按数据头自动识别
+     */
+    private CacheCodec codec;
+    /**
+     * 进程内一级缓存，容量满了按LRU淘汰，超过ttl毫秒自动失效
+     */
+    private LRUCache<String, LocalEntry> localCache;
+    @Value("${hmdp.hot-key.local-capacity:1000}")
+    private int hotCacheCapacity;
+    @Value("${hmdp.hot-key.local-ttl:1000}")
+    private long hotCacheTtl;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheMetrics cacheMetrics;
+    @Resource
+    private ClientSideCache clientSideCache;
+    @Resource
+    private RefreshAheadScheduler refreshAheadScheduler;
+    @Resource
+    private ExecutorService cacheRebuildExecutor;
+    /**
+     * 热点key的本地副本，不论是否开启一级缓存，探测到的热点key都会在这里短暂缓存
+     */
+    private LRUCache<String, LocalEntry> hotCache;
+    /**
+     * key前缀 -> 布隆过滤器，注册了过滤器的前缀在查询前先判断id是否可能存在
+     */
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+    /**
+     * 同一个key的并发加载和重建在本节点内合并成一次；加载返回数据，重建返回过期时间，两者使用不同的key前缀，不会互相合并
+     */
+    private final SingleFlight singleFlight = new SingleFlight();
+    private static final String FLIGHT_LOAD = "load:";
+    private static final String FLIGHT_REBUILD = "rebuild:";
+
+    @PostConstruct
+    private void init() {
+        codec = codecs.stream().filter(c -> c.name().equals(codecName)).findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的缓存编码器:" + codecName));
+        if (localCacheEnabled) {
+            localCache = CacheUtil.newLRUCache(localCacheCapacity, localCacheTtl);
+        }
+        hotCache = CacheUtil.newLRUCache(hotCacheCapacity, hotCacheTtl);
+    }
     /**
      *设置过期时间
      */
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),jitter(unit.toMillis(time)),TimeUnit.MILLISECONDS);
     }
     /**
      *设置逻辑过期时间
      */
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
+        writeLogicalExpire(key, value, time, unit);
+    }
+    /**
+     *写入逻辑过期数据，返回逻辑过期时间
+     */
+    private long writeLogicalExpire(String key, Object value, Long time, TimeUnit unit){
         //封装逻辑过期的字段
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        //将redisData写入redis，并且不设置过期时间
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        long expireAt = System.currentTimeMillis() + jitter(unit.toMillis(time));
+        //编码后写入redis，并且不设置过期时间
+        byte[] bytes = codec.encode(value, expireAt);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.stringCommands().set(rawKey(key), bytes));
+        putLocal(key, value, expireAt);
+        return expireAt;
+    }
+    /**
+     *批量设置逻辑过期时间，通过pipeline一次写入
+     */
+    public void setBatchWithLogicalExpire(Map<String, ?> values, Long time, TimeUnit unit){
+        if (values.isEmpty()) {
+            return;
+        }
+        //每个key单独加随机偏移，避免同一批写入的数据同时过期
+        long now = System.currentTimeMillis();
+        Map<String, Long> expireAts = new HashMap<>(values.size());
+        Map<byte[], byte[]> encoded = new LinkedHashMap<>(values.size());
+        values.forEach((key, value) -> {
+            long expireAt = now + jitter(unit.toMillis(time));
+            expireAts.put(key, expireAt);
+            encoded.put(rawKey(key), codec.encode(value, expireAt));
+        });
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            encoded.forEach((key, bytes) -> connection.stringCommands().set(key, bytes));
+            return null;
+        });
+        values.forEach((key, value) -> putLocal(key, value, expireAts.get(key)));
+    }
+    /**
+     *删除缓存，并通知所有节点清除一级缓存
+     */
+    public void delete(String key){
+        stringRedisTemplate.delete(key);
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+    /**
+     *为指定key前缀注册布隆过滤器，防止缓存穿透
+     */
+    public void registerBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter){
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+    /**
+     *清除本节点的一级缓存，由失效广播的监听器调用
+     */
+    public void evictLocal(String key){
+        if (localCache != null) {
+            localCache.remove(key);
+        }
+        hotCache.remove(key);
     }
     public <R,IDType> R queryWithPassThrough(String keyPrefix, IDType id, Class<R> type, Function<IDType,R> dbFallBack
     ,Long time, TimeUnit unit){
-        //1.从redis查询商铺缓存
+        //0.布隆过滤器判断不存在就直接返回，不访问redis和数据库
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        //0.先查一级缓存，命中就不用访问redis
+        LocalEntry local = getLocal(key);
+        if (local != null) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.LOCAL_HIT);
+            return type.cast(local.data);
+        }
+        //1.从redis查询商铺缓存，开启了客户端缓存的前缀优先读本地副本
+        byte[] raw = clientSideCache.get(key);
+        String json = raw == null ? null : new String(raw, StandardCharsets.UTF_8);
         //2.判断商铺信息是否存在
         if(StrUtil.isNotBlank(json)){
             //3.存在就直接返回缓存数据
-            return JSONUtil.toBean(json, type);//转化成指定实体类
+            cacheMetrics.request(keyPrefix, CacheMetrics.HIT);
+            R r = JSONUtil.toBean(json, type);//转化成指定实体类
+            putLocal(key, r, Long.MAX_VALUE);
+            return r;
         }
         //如果命中空值，说明是无效数据，直接返回不存在,就不需要去数据库查询了
         if("".equals(json)){
+            cacheMetrics.request(keyPrefix, CacheMetrics.NULL_HIT);
             return null;
         }
-        //4.不存在就根据id去数据库中查
-        R data = dbFallBack.apply(id);//这一块工具类不知道具体要去查哪个数据库，只能交给调用者去处理，所以使用函数式编程
-        //5.如果数据库不存在就返回错误信息
-        if(data==null){
-            //数据不存在就缓存空值
-            this.set(key,"",time,unit);
-            return null;
-        }
-        //6.存在就写回到redis
-        this.set(key,data,time,unit);
-        return data;
+        //4.不存在就根据id去数据库中查，同一个key并发未命中时只有一个线程查库，其他线程共享结果
+        cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
+        return singleFlight.execute(FLIGHT_LOAD + key, () -> {
+            long begin = System.currentTimeMillis();
+            R data = dbFallBack.apply(id);//这一块工具类不知道具体要去查哪个数据库，只能交给调用者去处理，所以使用函数式编程
+            recordRebuildCost(keyPrefix, System.currentTimeMillis() - begin);
+            //5.如果数据库不存在就返回错误信息
+            if(data==null){
+                //数据不存在就缓存空值
+                this.set(key,"",time,unit);
+                return null;
+            }
+            //6.存在就写回到redis
+            this.set(key,data,time,unit);
+            putLocal(key, data, Long.MAX_VALUE);
+            return data;
+        });
     }
-    private static final ExecutorService threadPool= Executors.newFixedThreadPool(10);
     //基于逻辑过期时间解决缓存击穿
     public <R,IDType> R queryWithLogicalExpire(String keyPrefix, IDType id, Class<R> type, Function<IDType,R> dbFallBack
             ,Long time, TimeUnit unit)  {
-        //1.从redis查询商铺缓存
+        //0.布隆过滤器判断不存在就直接返回，不访问redis和数据库
+        if (!mightContain(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
+        //0.先查一级缓存，未逻辑过期就直接返回，过期了再走redis判断是否需要重建
+        LocalEntry local = getLocal(key);
+        if (local != null && local.expireAt > System.currentTimeMillis()) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.LOCAL_HIT);
+            refreshIfNeeded(keyPrefix, id, dbFallBack, time, unit, local.expireAt);
+            return type.cast(local.data);
+        }
+        //1.从redis查询商铺缓存，开启了客户端缓存的前缀优先读本地副本
+        byte[] bytes = clientSideCache.get(key);
         //2.判断商铺信息是否存在
-        if(StrUtil.isBlank(json)){
-            //3.不存在就根据id去数据库中查
-            R data = dbFallBack.apply(id);//这一块工具类不知道具体要去查哪个数据库，只能交给调用者去处理，所以使用函数式编程
-            if(data==null){
-                //如果数据库不存在就返回错误信息
-                return null;
-            }else {
+        if(bytes == null || bytes.length == 0){
+            //3.不存在就根据id去数据库中查，并发的冷启动请求合并成一次查库
+            cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
+            return singleFlight.execute(FLIGHT_LOAD + key, () -> {
+                long begin = System.currentTimeMillis();
+                R data = dbFallBack.apply(id);//这一块工具类不知道具体要去查哪个数据库，只能交给调用者去处理，所以使用函数式编程
+                recordRebuildCost(keyPrefix, System.currentTimeMillis() - begin);
+                if(data==null){
+                    //如果数据库不存在就返回错误信息
+                    return null;
+                }
                 this.setWithLogicalExpire(key,data,time,unit);
                 return data;
-            }
+            });
         }
-        //4.缓存命中，就需要先把json反序列化位对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        //将Object类型数据转换成Shop类型
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
+        //4.缓存命中，先读出过期时间，和一级缓存是同一版本时就不用再解析数据体
+        CacheCodec.Entry entry = codecOf(bytes).parse(bytes);
+        long expireAt = entry.expireAt();
+        R r = local != null && local.expireAt == expireAt ? type.cast(local.data) : entry.decode(type);
         //5.判断是否过期，即过期时间是否在当前时间之后，在当前时间之前就没过期
-        if(expireTime.isAfter(LocalDateTime.now())){
-            //5.1未过期就直接返回店铺信息
+        if(expireAt > System.currentTimeMillis()){
+            //5.1未过期就直接返回店铺信息，开启提前刷新时按概率提前重建，越接近过期概率越大
+            cacheMetrics.request(keyPrefix, CacheMetrics.HIT);
+            putLocal(key, r, expireAt);
+            refreshIfNeeded(keyPrefix, id, dbFallBack, time, unit, expireAt);
             return r;
         }
-        //5.2过期就需要缓存重建
-        String lockKey=LOCK_SHOP_KEY+id;
-        boolean isLock = tryLock(lockKey);
-        if(isLock){
-            //获取锁成功就开启异步线程完成缓存重建
-            threadPool.submit(()->{
-                try {
-                    R r1 = dbFallBack.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
-                    unlock(lockKey);//释放锁
+        //5.2过期就需要缓存重建，本节点已经有线程在重建这个key时不再重复抢redis锁
+        cacheMetrics.request(keyPrefix, CacheMetrics.STALE);
+        refreshIfNeeded(keyPrefix, id, dbFallBack, time, unit, expireAt);
+        return r;//先返回旧数据挡一下，然后由异步线程来修改
+    }
+    /**
+     *批量查询逻辑过期缓存：一次MGET，未命中的id一次交给数据库查询，再通过pipeline一次写回
+     * @param dbFallBack 根据id集合批量查询数据库，返回id到数据的映射
+     * @return 按ids的顺序返回查询到的数据，不存在的id会被跳过
+     */
+    public <R,IDType> List<R> queryBatch(String keyPrefix, Collection<IDType> ids, Class<R> type,
+                                         Function<Collection<IDType>, Map<IDType,R>> dbFallBack,
+                                         Long time, TimeUnit unit) {
+        Map<IDType, R> result = new HashMap<>(ids.size());
+        Set<IDType> remoteIds = new LinkedHashSet<>();
+        Function<IDType, R> singleFallBack = single -> dbFallBack.apply(Collections.singletonList(single)).get(single);
+        long now = System.currentTimeMillis();
+        for (IDType id : ids) {
+            //1.布隆过滤器判断不存在的直接跳过
+            if (!mightContain(keyPrefix, id) || result.containsKey(id) || remoteIds.contains(id)) {
+                continue;
+            }
+            //2.查一级缓存
+            LocalEntry local = getLocal(keyPrefix + id);
+            if (local != null && local.expireAt > now) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.LOCAL_HIT);
+                result.put(id, type.cast(local.data));
+                refreshIfNeeded(keyPrefix, id, singleFallBack, time, unit, local.expireAt);
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        //3.一次MGET查询redis
+        List<IDType> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()) {
+            List<IDType> remoteList = new ArrayList<>(remoteIds);
+            byte[][] keys = remoteList.stream().map(id -> rawKey(keyPrefix + id)).toArray(byte[][]::new);
+            List<byte[]> values = stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection ->
+                    connection.stringCommands().mGet(keys));
+            for (int i = 0; i < remoteList.size(); i++) {
+                IDType id = remoteList.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                if (bytes == null || bytes.length == 0) {
+                    cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
+                    missIds.add(id);
+                    continue;
+                }
+                CacheCodec.Entry entry = codecOf(bytes).parse(bytes);
+                long expireAt = entry.expireAt();
+                R r = entry.decode(type);
+                result.put(id, r);
+                if (expireAt > now) {
+                    cacheMetrics.request(keyPrefix, CacheMetrics.HIT);
+                    putLocal(keyPrefix + id, r, expireAt);
+                } else {
+                    //过期的先返回旧数据，异步重建
+                    cacheMetrics.request(keyPrefix, CacheMetrics.STALE);
+                }
+                refreshIfNeeded(keyPrefix, id, singleFallBack, time, unit, expireAt);
+            }
+        }
+        //4.未命中的一次查询数据库，并通过pipeline写回redis
+        if (!missIds.isEmpty()) {
+            long begin = System.currentTimeMillis();
+            Map<IDType, R> loaded = dbFallBack.apply(missIds);
+            recordRebuildCost(keyPrefix, System.currentTimeMillis() - begin);
+            Map<String, R> toCache = new HashMap<>(loaded.size());
+            loaded.forEach((id, r) -> {
+                if (r != null) {
+                    result.put(id, r);
+                    toCache.put(keyPrefix + id, r);
                 }
             });
+            setBatchWithLogicalExpire(toCache, time, unit);
+        }
+        //5.按照传入的顺序返回
+        List<R> list = new ArrayList<>(result.size());
+        for (IDType id : ids) {
+            R r = result.remove(id);
+            if (r != null) {
+                list.add(r);
+            }
+        }
+        return list;
+    }
+    /**
+     *批量查询hash结构的缓存：通过pipeline对每个key执行HMGET，只读取fields中的字段，
+     * 未命中的id一次交给数据库查询，再通过pipeline写回完整数据
+     * @return 按ids的顺序返回只填充了fields字段的对象，不存在的id会被跳过
+     */
+    public <R,IDType> List<R> queryHashBatch(String keyPrefix, Collection<IDType> ids, Class<R> type, List<String> fields,
+                                             Function<Collection<IDType>, Map<IDType,R>> dbFallBack,
+                                             Long time, TimeUnit unit){
+        //1.布隆过滤器判断不存在的直接跳过
+        List<IDType> remoteIds = ids.stream().filter(id -> mightContain(keyPrefix, id)).distinct()
+                .collect(Collectors.toList());
+        if (remoteIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        //2.pipeline批量HMGET，额外读取状态字段，区分缓存不存在、缓存了空值和字段本身为空
+        byte[][] rawFields = new byte[fields.size() + 1][];
+        for (int i = 0; i < fields.size(); i++) {
+            rawFields[i] = rawKey(fields.get(i));
+        }
+        rawFields[fields.size()] = rawKey(HASH_STATE_FIELD);
+        List<Object> replies = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            remoteIds.forEach(id -> connection.hashCommands().hMGet(rawKey(keyPrefix + id), rawFields));
+            return null;
+        });
+        Map<IDType, R> result = new HashMap<>(remoteIds.size());
+        List<IDType> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            IDType id = remoteIds.get(i);
+            List<?> values = (List<?>) replies.get(i);
+            Object state = values.get(fields.size());
+            if (state == null) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.MISS);
+                missIds.add(id);
+                continue;
+            }
+            if (HASH_STATE_NULL.equals(state)) {
+                cacheMetrics.request(keyPrefix, CacheMetrics.NULL_HIT);
+                continue;
+            }
+            cacheMetrics.request(keyPrefix, CacheMetrics.HIT);
+            Map<String, Object> projection = new HashMap<>(fields.size());
+            for (int j = 0; j < fields.size(); j++) {
+                if (values.get(j) != null) {
+                    projection.put(fields.get(j), values.get(j));
+                }
+            }
+            result.put(id, BeanUtil.fillBeanWithMap(projection, ReflectUtil.newInstance(type), false));
+        }
+        //3.未命中的一次查询数据库，通过pipeline写回完整数据，不存在的写入空值标记
+        if (!missIds.isEmpty()) {
+            long begin = System.currentTimeMillis();
+            Map<IDType, R> loaded = dbFallBack.apply(missIds);
+            recordRebuildCost(keyPrefix, System.currentTimeMillis() - begin);
+            Map<String, Map<String, String>> toCache = new HashMap<>(missIds.size());
+            for (IDType id : missIds) {
+                R r = loaded.get(id);
+                if (r == null) {
+                    toCache.put(keyPrefix + id, Collections.singletonMap(HASH_STATE_FIELD, HASH_STATE_NULL));
+                    continue;
+                }
+                Map<String, String> hash = toHash(r);
+                toCache.put(keyPrefix + id, hash);
+                Map<String, Object> projection = new HashMap<>(fields.size());
+                fields.stream().filter(hash::containsKey).forEach(field -> projection.put(field, hash.get(field)));
+                result.put(id, BeanUtil.fillBeanWithMap(projection, ReflectUtil.newInstance(type), false));
+            }
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                toCache.forEach((key, hash) -> writeHash(connection, key, hash,
+                        HASH_STATE_NULL.equals(hash.get(HASH_STATE_FIELD))
+                                ? TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL) : jitter(unit.toMillis(time))));
+                return null;
+            });
+        }
+        //4.按照传入的顺序返回
+        List<R> list = new ArrayList<>(result.size());
+        for (IDType id : ids) {
+            R r = result.remove(id);
+            if (r != null) {
+                list.add(r);
+            }
+        }
+        return list;
+    }
+    /**
+     *读取hash结构缓存的版本，缓存不存在或缓存的是空值时返回null，在修改数据库之前调用
+     */
+    public String hashVersion(String key){
+        Object version = stringRedisTemplate.opsForHash().get(key, HASH_VERSION_FIELD);
+        return version == null ? null : version.toString();
+    }
+    /**
+     *对hash结构缓存中的数值字段累加，只有版本和修改数据库之前读到的一致时才累加；
+     * 版本变了说明期间被重新加载过，加载时可能已经读到了修改后的数据库值，再累加就会重复计数
+     * @param version 修改数据库之前通过hashVersion读到的版本
+     * @return 累加后的值，缓存不存在或版本不一致时返回null，调用方应该删除缓存
+     */
+    public Long incrementHash(String key, String field, long delta, String version){
+        if (version == null) {
+            return null;
+        }
+        return stringRedisTemplate.execute(HINCR_SCRIPT, Collections.singletonList(key),
+                field, String.valueOf(delta), HASH_VERSION_FIELD, version);
+    }
+    /**
+     * 实体转成hash，值统一转成字符串，时间格式化成hutool能直接解析回来的格式
+     */
+    private static Map<String, String> toHash(Object value){
+        Map<String, String> hash = new HashMap<>();
+        BeanUtil.beanToMap(value, false, true).forEach((field, fieldValue) -> hash.put(field,
+                fieldValue instanceof LocalDateTime
+                        ? LocalDateTimeUtil.formatNormal((LocalDateTime) fieldValue) : fieldValue.toString()));
+        hash.put(HASH_STATE_FIELD, HASH_STATE_EXISTS);
+        hash.put(HASH_VERSION_FIELD, IdUtil.fastSimpleUUID());
+        return hash;
+    }
+    private static void writeHash(RedisConnection connection, String key, Map<String, String> hash, long ttlMillis){
+        byte[] raw = rawKey(key);
+        Map<byte[], byte[]> rawHash = new HashMap<>(hash.size());
+        hash.forEach((field, value) -> rawHash.put(rawKey(field), rawKey(value)));
+        connection.hashCommands().hMSet(raw, rawHash);
+        connection.keyCommands().pExpire(raw, ttlMillis);
+    }
+    /**
+     * 读到逻辑过期数据后判断是否需要重建：开启提前刷新调度器时只记录访问，由调度器在后台统一刷新；
+     * 调度器未开启或跟踪的key已满时，已过期或按XFetch算法需要提前刷新时异步重建
+     */
+    private <R,IDType> void refreshIfNeeded(String keyPrefix, IDType id, Function<IDType,R> dbFallBack,
+                                            Long time, TimeUnit unit, long expireAt){
+        String key = keyPrefix + id;
+        if (refreshAheadScheduler.isEnabled() && refreshAheadScheduler.record(key, expireAt, () ->
+                //和本节点其他线程的重建合并
+                singleFlight.execute(FLIGHT_REBUILD + key, () -> rebuild(keyPrefix, id, dbFallBack, time, unit)))) {
+            return;
+        }
+        if (expireAt <= System.currentTimeMillis() || shouldRefreshEarly(keyPrefix, expireAt)) {
+            rebuildAsync(keyPrefix, id, dbFallBack, time, unit);
+        }
+    }
+    private <R,IDType> void rebuildAsync(String keyPrefix, IDType id, Function<IDType,R> dbFallBack, Long time, TimeUnit unit){
+        singleFlight.submit(FLIGHT_REBUILD + keyPrefix + id, cacheRebuildExecutor, () -> rebuild(keyPrefix, id, dbFallBack, time, unit));
+    }
+    /**
+     * 获取重建锁后查询数据库并写回redis，返回新的逻辑过期时间，没有获取到锁返回0
+     */
+    private <R,IDType> long rebuild(String keyPrefix, IDType id, Function<IDType,R> dbFallBack, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        String lockKey=LOCK_SHOP_KEY+id;
+        //获取锁失败说明其他节点正在重建
+        boolean isLock = tryLock(lockKey);
+        cacheMetrics.lock(keyPrefix, isLock);
+        if (!isLock) {
+            return 0;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            R r1 = dbFallBack.apply(id);
+            recordRebuildCost(keyPrefix, System.currentTimeMillis() - begin);
+            //写入redis
+            return writeLogicalExpire(key,r1,time,unit);
+        } catch (Exception e) {
+            log.error("缓存重建失败:{}", key, e);
+            throw e;
+        } finally {
+            unlock(lockKey);//释放锁
+        }
+    }
+    /**
+     * XFetch算法：now - delta * beta * ln(random) >= expireAt 时提前刷新，
+     * delta是重建耗时，重建越慢、越接近过期，提前刷新的概率越大
+     */
+    private boolean shouldRefreshEarly(String keyPrefix, long expireAt){
+        if (!earlyRefreshEnabled) {
+            return false;
+        }
+        Long delta = rebuildCost.get(keyPrefix);
+        if (delta == null || delta == 0) {
+            return false;
+        }
+        double random = ThreadLocalRandom.current().nextDouble();
+        return System.currentTimeMillis() - delta * earlyRefreshBeta * Math.log(random) >= expireAt;
+    }
+    private void recordRebuildCost(String keyPrefix, long cost){
+        cacheMetrics.rebuild(keyPrefix, cost);
+        rebuildCost.merge(keyPrefix, cost, (old, latest) -> (old * 7 + latest) / 8);
+    }
+    /**
+     * 给过期时间加上±ttlJitter比例的随机偏移
+     */
+    private long jitter(long ttlMillis){
+        if (ttlJitter <= 0) {
+            return ttlMillis;
+        }
+        double factor = 1 + ThreadLocalRandom.current().nextDouble(-ttlJitter, ttlJitter);
+        return Math.max(1, (long) (ttlMillis * factor));
+    }
+    private boolean mightContain(String keyPrefix, Object id){
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || bloomFilter.mightContain(id);
+    }
+    private CacheCodec codecOf(byte[] bytes){
+        //优先用当前编码器，兼容迁移期间其他格式的旧数据
+        if (codec.supports(bytes)) {
+            return codec;
+        }
+        for (CacheCodec c : codecs) {
+            if (c.supports(bytes)) {
+                return c;
+            }
+        }
+        throw new IllegalStateException("无法识别的缓存数据格式");
+    }
+    private static byte[] rawKey(String key){
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+    /**
+     * 查询本地缓存，每次读取都会计入热点探测
+     */
+    private LocalEntry getLocal(String key){
+        hotKeyDetector.record(key);
+        LocalEntry entry = localCache == null ? null : localCache.get(key);
+        return entry != null ? entry : hotCache.get(key);
+    }
+    private void putLocal(String key, Object value, long expireAt){
+        LocalEntry entry = new LocalEntry(value, expireAt);
+        if (localCache != null) {
+            localCache.put(key, entry);
+        }
+        if (hotKeyDetector.isHot(key)) {
+            hotCache.put(key, entry);
+        }
+    }
+    /**
+     * 一级缓存条目，expireAt为逻辑过期时间戳，普通缓存为Long.MAX_VALUE
+     */
+    private static class LocalEntry {
+        private final Object data;
+        private final long expireAt;
+
+        private LocalEntry(Object data, long expireAt) {
+            this.data = data;
+            this.expireAt = expireAt;
         }
-        return r;//先返回旧数据挡一下，然后由异步线程来修改
     }
     private boolean tryLock(String key){
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
@@ -121,5 +625,4 @@ public class CacheClient {
     private void unlock(String key){
         stringRedisTemplate.delete(key);
     }
-    //TODO 基于布隆过滤器防止缓存穿透
 }
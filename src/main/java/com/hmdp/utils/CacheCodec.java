@@ -0,0 +1,60 @@
+package com.hmdp.utils;
+
+/**
+ * 逻辑过期缓存的编解码器，过期时间必须能在不解析数据体的情况下读出来
+ */
+public interface CacheCodec {
+    /**
+     * 编码器名称，对应配置hmdp.cache.codec
+     */
+    String name();
+
+    /**
+     * 编码数据和逻辑过期时间
+     * @param value 缓存数据
+     * @param expireAt 逻辑过期时间戳，单位毫秒
+     */
+    byte[] encode(Object value, long expireAt);
+
+    /**
+     * 判断数据是否由当前编码器写入，用于新旧格式共存时的迁移
+     */
+    boolean supports(byte[] bytes);
+
+    /**
+     * 只读取逻辑过期时间戳
+     */
+    long readExpireAt(byte[] bytes);
+
+    /**
+     * 解码数据体
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    /**
+     * 解析一次后读取过期时间和数据体，默认分别调用readExpireAt和decode；
+     * 只能整体解析的格式要覆盖这个方法，同一份数据不重复解析
+     */
+    default Entry parse(byte[] bytes) {
+        return new Entry() {
+            @Override
+            public long expireAt() {
+                return readExpireAt(bytes);
+            }
+
+            @Override
+            public <R> R decode(Class<R> type) {
+                return CacheCodec.this.decode(bytes, type);
+            }
+        };
+    }
+
+    /**
+     * 一条已经解析的缓存数据
+     */
+    interface Entry {
+        long expireAt();
+
+        <R> R decode(Class<R> type);
+    }
+}
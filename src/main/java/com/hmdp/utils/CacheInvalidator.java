@@ -0,0 +1,168 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * 缓存失效：在事务提交之后删除缓存，延迟一段时间再删一次，
+ * 覆盖提交前后并发读把旧数据写回缓存的情况；删除失败的key写入本地文件，定时重试，重启后也不会丢
+ */
+@Slf4j
+@Component
+public class CacheInvalidator {
+    private static final ScheduledExecutorService DELAY_EXECUTOR = Executors.newSingleThreadScheduledExecutor();
+    @Resource
+    private CacheClient cacheClient;
+    @Value("${hmdp.cache.invalidate.delay:1000}")
+    private long delayMillis;
+    @Value("${hmdp.cache.invalidate.retry-file:cache-invalidate.queue}")
+    private String retryFile;
+    private Path retryPath;
+
+    @PostConstruct
+    private void init() {
+        retryPath = Paths.get(retryFile);
+    }
+
+    /**
+     * 使缓存失效，在事务中调用时等到提交之后才删除，回滚则不删除
+     */
+    public void invalidate(String key) {
+        afterCommit(() -> deleteTwice(key));
+    }
+
+    /**
+     * 事务提交后先尝试直接修改缓存，返回false或者出错时改为删除缓存并延迟双删
+     */
+    public void updateOrInvalidate(String key, BooleanSupplier update) {
+        afterCommit(() -> {
+            boolean updated = false;
+            try {
+                updated = update.getAsBoolean();
+            } catch (Exception e) {
+                log.warn("修改缓存失败，改为删除:{}", key, e);
+            }
+            if (!updated) {
+                deleteTwice(key);
+            }
+        });
+    }
+
+    /**
+     * 在当前事务提交之后执行，不在事务中时立即执行
+     */
+    public void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    private void deleteTwice(String key) {
+        //1.立即删除
+        delete(key);
+        //2.延迟双删，清掉提交前后被并发读请求写回的旧数据
+        DELAY_EXECUTOR.schedule(() -> delete(key), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void delete(String key) {
+        try {
+            cacheClient.delete(key);
+        } catch (Exception e) {
+            log.error("删除缓存失败，加入重试队列:{}", key, e);
+            enqueue(key);
+        }
+    }
+
+    private synchronized void enqueue(String key) {
+        try {
+            Files.write(retryPath, (key + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            log.error("写入缓存失效重试队列失败:{}", key, e);
+        }
+    }
+
+    /**
+     * 定时重试删除失败的key，成功的从队列文件中移除
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.invalidate.retry-interval:5000}")
+    public void retry() {
+        List<String> pending = readQueue();
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<String> done = new ArrayList<>();
+        for (String key : pending) {
+            try {
+                cacheClient.delete(key);
+                done.add(key);
+            } catch (Exception e) {
+                log.warn("重试删除缓存失败:{}", key);
+                break;
+            }
+        }
+        removeFromQueue(done);
+    }
+
+    private synchronized List<String> readQueue() {
+        if (!Files.exists(retryPath)) {
+            return new ArrayList<>();
+        }
+        try {
+            Set<String> keys = new LinkedHashSet<>(Files.readAllLines(retryPath, StandardCharsets.UTF_8));
+            keys.remove("");
+            return new ArrayList<>(keys);
+        } catch (IOException e) {
+            log.error("读取缓存失效重试队列失败", e);
+            return new ArrayList<>();
+        }
+    }
+
+    private synchronized void removeFromQueue(List<String> done) {
+        if (done.isEmpty()) {
+            return;
+        }
+        try {
+            //重新读一次，保留重试期间新加入的key
+            List<String> remaining = new ArrayList<>(new LinkedHashSet<>(Files.readAllLines(retryPath, StandardCharsets.UTF_8)));
+            remaining.removeAll(done);
+            remaining.remove("");
+            if (remaining.isEmpty()) {
+                Files.deleteIfExists(retryPath);
+            } else {
+                Files.write(retryPath, remaining, StandardCharsets.UTF_8,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE);
+            }
+        } catch (IOException e) {
+            log.error("更新缓存失效重试队列失败", e);
+        }
+    }
+}
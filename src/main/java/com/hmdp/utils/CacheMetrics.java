@@ -0,0 +1,58 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按key前缀统计缓存指标，通过actuator的/actuator/metrics查看：
+ * cache.requests{prefix,result} 命中(hit/local_hit)、未命中(miss)、命中空值(null_hit)、返回逻辑过期的旧数据(stale)、
+ * 只保存在redis中的集合本来就是空的(empty，比如没人点赞的博客，不会回源，不算未命中)
+ * cache.lock{prefix,result} 重建锁获取成功(acquired)或被其他节点持有(contended)
+ * cache.rebuild{prefix} 查库重建耗时分布
+ */
+@Component
+public class CacheMetrics {
+    public static final String HIT = "hit";
+    public static final String LOCAL_HIT = "local_hit";
+    public static final String MISS = "miss";
+    public static final String NULL_HIT = "null_hit";
+    public static final String STALE = "stale";
+    public static final String EMPTY = "empty";
+    @Resource
+    private MeterRegistry meterRegistry;
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    /**
+     * 记录一次缓存查询结果
+     */
+    public void request(String prefix, String result) {
+        counter("cache.requests", prefix, result).increment();
+    }
+
+    public void lock(String prefix, boolean acquired) {
+        counter("cache.lock", prefix, acquired ? "acquired" : "contended").increment();
+    }
+
+    public void rebuild(String prefix, long millis) {
+        timers.computeIfAbsent(prefix, p -> Timer.builder("cache.rebuild")
+                .tag("prefix", p)
+                .publishPercentileHistogram()
+                .register(meterRegistry))
+                .record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    private Counter counter(String name, String prefix, String result) {
+        return counters.computeIfAbsent(name + '|' + prefix + '|' + result, k -> Counter.builder(name)
+                .tag("prefix", prefix)
+                .tag("result", result)
+                .register(meterRegistry));
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动时预热缓存：分页读取店铺写入逻辑过期缓存和GEO索引，并加载店铺类型列表。
+ * ApplicationRunner执行完之后spring才会把应用标记为可接收流量，
+ * 所以这里等待预热完成，超过时间预算就让预热在后台继续，不再阻塞启动
+ */
+@Slf4j
+@Component
+public class CacheWarmUpRunner implements ApplicationRunner {
+    @Resource
+    private IShopService shopService;
+    @Resource
+    private IShopTypeService shopTypeService;
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.warm-up.enabled:true}")
+    private boolean enabled;
+    @Value("${hmdp.warm-up.page-size:500}")
+    private int pageSize;
+    @Value("${hmdp.warm-up.time-budget:30000}")
+    private long timeBudget;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> new Thread(r, "cache-warm-up"));
+        Future<?> future = executor.submit(this::warmUp);
+        executor.shutdown();
+        try {
+            future.get(timeBudget, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("缓存预热超过{}ms，剩余部分在后台继续执行", timeBudget);
+        } catch (ExecutionException e) {
+            log.error("缓存预热失败", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void warmUp() {
+        long begin = System.currentTimeMillis();
+        //1.店铺类型列表
+        shopTypeService.queryTypeList();
+        //2.按id分页读取店铺，避免一次性把整张表加载到内存
+        int total = shopService.count();
+        int done = 0;
+        long lastId = 0;
+        while (true) {
+            List<Shop> shops = shopService.query()
+                    .gt("id", lastId)
+                    .orderByAsc("id")
+                    .last("limit " + pageSize)
+                    .list();
+            if (shops.isEmpty()) {
+                break;
+            }
+            warmUpShops(shops);
+            lastId = shops.get(shops.size() - 1).getId();
+            done += shops.size();
+            log.info("缓存预热进度: {}/{}", done, total);
+        }
+        log.info("缓存预热完成，共{}个店铺，耗时{}ms", done, System.currentTimeMillis() - begin);
+    }
+
+    private void warmUpShops(List<Shop> shops) {
+        //1.逻辑过期缓存，一个pipeline写入
+        Map<String, Shop> values = new HashMap<>(shops.size());
+        //2.按类型分组的地理坐标
+        Map<Long, List<RedisGeoCommands.GeoLocation<byte[]>>> locations = new HashMap<>();
+        for (Shop shop : shops) {
+            values.put(CACHE_SHOP_KEY + shop.getId(), shop);
+            locations.computeIfAbsent(shop.getTypeId(), typeId -> new ArrayList<>())
+                    .add(new RedisGeoCommands.GeoLocation<>(
+                            shop.getId().toString().getBytes(StandardCharsets.UTF_8),
+                            new Point(shop.getX(), shop.getY())));
+        }
+        cacheClient.setBatchWithLogicalExpire(values, LOCK_SHOP_TTL, TimeUnit.SECONDS);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            locations.forEach((typeId, list) -> connection.geoCommands()
+                    .geoAdd((SHOP_GEO_KEY + typeId).getBytes(StandardCharsets.UTF_8), list));
+            return null;
+        });
+    }
+}
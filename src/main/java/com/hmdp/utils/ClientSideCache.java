@@ -0,0 +1,215 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.util.StrUtil;
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisChannelHandler;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisConnectionStateAdapter;
+import io.lettuce.core.RedisException;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.TrackingArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.push.PushMessage;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.protocol.ProtocolVersion;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于RESP3客户端缓存(CLIENT TRACKING BCAST)的本地缓存：读多写少的key前缀在本地缓存redis返回的原始数据，
+ * 这些前缀下的key被任何客户端修改时，redis会主动推送invalidate消息，收到后清除本地副本。
+ * 使用一个独立的RESP3连接，连接断开期间收不到失效推送，所以断开时清空本地缓存，重连后重新开启tracking
+ */
+@Slf4j
+@Component
+public class ClientSideCache {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private RedisProperties redisProperties;
+    @Value("${hmdp.cache.client-side.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.cache.client-side.prefixes:cache:shop:,typeList}")
+    private String[] prefixes;
+    @Value("${hmdp.cache.client-side.capacity:10000}")
+    private int capacity;
+    private RedisClient client;
+    private StatefulRedisConnection<byte[], byte[]> connection;
+    /**
+     * key -> GET返回的byte[]或LRANGE返回的List<String>
+     */
+    private LRUCache<String, Object> cache;
+    /**
+     * 每收到一次失效推送加一，读取redis前后版本不一致说明期间可能有失效，不写入本地缓存
+     */
+    private final AtomicLong version = new AtomicLong();
+    private volatile boolean tracking;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        cache = CacheUtil.newLRUCache(capacity);
+        RedisURI.Builder uri = RedisURI.builder()
+                .withHost(redisProperties.getHost())
+                .withPort(redisProperties.getPort())
+                .withDatabase(redisProperties.getDatabase());
+        if (StrUtil.isNotBlank(redisProperties.getPassword())) {
+            uri.withPassword(redisProperties.getPassword().toCharArray());
+        }
+        client = RedisClient.create(uri.build());
+        client.setOptions(ClientOptions.builder().protocolVersion(ProtocolVersion.RESP3).build());
+        client.addListener(new RedisConnectionStateAdapter() {
+            @Override
+            public void onRedisConnected(RedisChannelHandler<?, ?> handler, SocketAddress address) {
+                //重连之后tracking状态已经丢失，重新开启
+                if (connection != null) {
+                    enableTracking();
+                }
+            }
+
+            @Override
+            public void onRedisDisconnected(RedisChannelHandler<?, ?> handler) {
+                //断开期间的失效推送会丢失，本地数据不再可信
+                tracking = false;
+                invalidateAll();
+            }
+        });
+        try {
+            connection = client.connect(ByteArrayCodec.INSTANCE);
+        } catch (RedisException e) {
+            //redis 6以下不支持RESP3，回退为直接查询redis
+            log.error("建立RESP3连接失败，不开启redis客户端缓存", e);
+            client.shutdown();
+            client = null;
+            return;
+        }
+        connection.addListener(this::onPushMessage);
+        enableTracking();
+        log.info("已开启redis客户端缓存，前缀:{}", String.join(",", prefixes));
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (client != null) {
+            connection.close();
+            client.shutdown();
+        }
+    }
+
+    /**
+     * 读取字符串类型的原始数据，前缀未开启客户端缓存时直接查询redis
+     */
+    public byte[] get(String key) {
+        if (!isTracked(key)) {
+            return stringRedisTemplate.execute((RedisCallback<byte[]>) c ->
+                    c.stringCommands().get(key.getBytes(StandardCharsets.UTF_8)));
+        }
+        Object cached = cache.get(key);
+        if (cached != null) {
+            return (byte[]) cached;
+        }
+        long before = version.get();
+        byte[] value = connection.sync().get(key.getBytes(StandardCharsets.UTF_8));
+        putIfUnchanged(key, value, before);
+        return value;
+    }
+
+    /**
+     * 读取整个list，前缀未开启客户端缓存时直接查询redis
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> range(String key) {
+        if (!isTracked(key)) {
+            return stringRedisTemplate.opsForList().range(key, 0, -1);
+        }
+        Object cached = cache.get(key);
+        if (cached != null) {
+            return (List<String>) cached;
+        }
+        long before = version.get();
+        List<byte[]> values = connection.sync().lrange(key.getBytes(StandardCharsets.UTF_8), 0, -1);
+        List<String> decoded = new ArrayList<>(values.size());
+        values.forEach(value -> decoded.add(new String(value, StandardCharsets.UTF_8)));
+        //本地副本会被多个请求共享，不允许修改
+        List<String> list = Collections.unmodifiableList(decoded);
+        putIfUnchanged(key, list, before);
+        return list;
+    }
+
+    private boolean isTracked(String key) {
+        if (!tracking) {
+            return false;
+        }
+        for (String prefix : prefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void putIfUnchanged(String key, Object value, long before) {
+        //不存在的key不缓存，避免大量空值占满容量；读取期间收到过失效推送也不缓存
+        if (value == null || (value instanceof List && ((List<?>) value).isEmpty())) {
+            return;
+        }
+        if (tracking && version.get() == before) {
+            cache.put(key, value);
+        }
+    }
+
+    private void enableTracking() {
+        connection.async()
+                .clientTracking(TrackingArgs.Builder.enabled().bcast().prefixes(StandardCharsets.UTF_8, prefixes))
+                .whenComplete((reply, e) -> {
+                    if (e != null) {
+                        log.error("开启redis客户端缓存失败，回退为直接查询redis", e);
+                        return;
+                    }
+                    invalidateAll();
+                    tracking = true;
+                });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onPushMessage(PushMessage message) {
+        if (!"invalidate".equals(message.getType())) {
+            return;
+        }
+        version.incrementAndGet();
+        List<Object> content = message.getContent(StringCodec.UTF8::decodeKey);
+        //key列表为null表示redis执行了FLUSHALL/FLUSHDB，需要清空全部
+        List<String> keys = (List<String>) content.get(1);
+        if (keys == null) {
+            invalidateAll();
+            return;
+        }
+        keys.forEach(cache::remove);
+    }
+
+    private void invalidateAll() {
+        version.incrementAndGet();
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+}
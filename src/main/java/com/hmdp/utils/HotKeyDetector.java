@@ -0,0 +1,136 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.HashUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 热点key探测：滑动窗口由多个时间片组成，每个时间片一个count-min sketch，
+ * 窗口内访问次数超过阈值的key进入候选集，每次滑动窗口时用小顶堆选出访问最多的topK作为热点
+ */
+@Component
+public class HotKeyDetector {
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    @Value("${hmdp.hot-key.slices:5}")
+    private int sliceCount;
+    @Value("${hmdp.hot-key.threshold:500}")
+    private long threshold;
+    @Value("${hmdp.hot-key.top-k:20}")
+    private int topK;
+    /**
+     * [时间片][哈希函数] -> 计数数组
+     */
+    private AtomicLongArray[][] sketches;
+    private volatile int current;
+    private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+    private volatile Map<String, Long> hotKeys = Collections.emptyMap();
+
+    @PostConstruct
+    private void init() {
+        sketches = new AtomicLongArray[sliceCount][DEPTH];
+        for (int i = 0; i < sliceCount; i++) {
+            for (int j = 0; j < DEPTH; j++) {
+                sketches[i][j] = new AtomicLongArray(WIDTH);
+            }
+        }
+    }
+
+    /**
+     * 记录一次访问
+     */
+    public void record(String key) {
+        int[] indexes = indexes(key);
+        AtomicLongArray[] sketch = sketches[current];
+        for (int i = 0; i < DEPTH; i++) {
+            sketch[i].incrementAndGet(indexes[i]);
+        }
+        long estimate = estimate(indexes);
+        if (estimate >= threshold) {
+            candidates.put(key, estimate);
+        }
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 当前的热点key及窗口内的估算访问次数，按访问次数倒序
+     */
+    public Map<String, Long> hotKeys() {
+        return hotKeys;
+    }
+
+    /**
+     * 滑动窗口：清空最老的时间片，重新估算候选key并选出topK
+     */
+    @Scheduled(fixedRateString = "${hmdp.hot-key.slice-millis:2000}")
+    public void rotate() {
+        int next = (current + 1) % sliceCount;
+        for (AtomicLongArray row : sketches[next]) {
+            for (int i = 0; i < WIDTH; i++) {
+                row.set(i, 0);
+            }
+        }
+        current = next;
+        //小顶堆保留访问次数最多的topK个key
+        PriorityQueue<Map.Entry<String, Long>> heap = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (String key : candidates.keySet()) {
+            long estimate = estimate(indexes(key));
+            if (estimate < threshold) {
+                candidates.remove(key);
+                continue;
+            }
+            heap.offer(new AbstractMap.SimpleEntry<>(key, estimate));
+            if (heap.size() > topK) {
+                heap.poll();
+            }
+        }
+        List<Map.Entry<String, Long>> top = new ArrayList<>(heap);
+        top.sort(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()));
+        Map<String, Long> hot = new LinkedHashMap<>(top.size());
+        top.forEach(entry -> hot.put(entry.getKey(), entry.getValue()));
+        hotKeys = Collections.unmodifiableMap(hot);
+    }
+
+    /**
+     * 窗口内所有时间片的计数之和，每个时间片取各哈希函数计数的最小值
+     */
+    private long estimate(int[] indexes) {
+        long total = 0;
+        for (AtomicLongArray[] sketch : sketches) {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, sketch[i].get(indexes[i]));
+            }
+            total += min;
+        }
+        return total;
+    }
+
+    private static int[] indexes(String key) {
+        long[] hash = HashUtil.murmur128(key.getBytes(StandardCharsets.UTF_8));
+        int[] indexes = new int[DEPTH];
+        long combined = hash[0];
+        for (int i = 0; i < DEPTH; i++) {
+            indexes[i] = (int) ((combined & Long.MAX_VALUE) % WIDTH);
+            combined += hash[1];
+        }
+        return indexes;
+    }
+}
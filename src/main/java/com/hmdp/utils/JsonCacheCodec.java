@@ -0,0 +1,63 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * 原有的RedisData JSON格式，作为兜底编码器保证旧数据仍然可读
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public byte[] encode(Object value, long expireAt) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == '{';
+    }
+
+    @Override
+    public long readExpireAt(byte[] bytes) {
+        return parse(bytes).expireAt();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        return parse(bytes).decode(type);
+    }
+
+    /**
+     * JSON格式只能整体解析后才能拿到过期时间，解析一次之后过期时间和数据体都从同一个JSONObject中读取
+     */
+    @Override
+    public Entry parse(byte[] bytes) {
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        return new Entry() {
+            @Override
+            public long expireAt() {
+                return json.get("expireTime", LocalDateTime.class).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            }
+
+            @Override
+            public <R> R decode(Class<R> type) {
+                return json.getJSONObject("data").toBean(type);
+            }
+        };
+    }
+}
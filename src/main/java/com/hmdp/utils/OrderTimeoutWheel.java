@@ -0,0 +1,170 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RELEASE_RETRY_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_TIMEOUT_KEY;
+
+/**
+ * 未支付订单的超时时间轮，保存在redis中，重启不丢失。
+ * 按到期时间所在的刻度把订单哈希到wheel-size个槽，每个槽是一个zset，分数是到期时间；
+ * 每个刻度只检查对应的槽，分数还没到的是后面几圈的订单，留在槽中等下一圈
+ */
+@Component
+public class OrderTimeoutWheel {
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("timeoutClaim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.seckill.order-timeout.enabled:true}")
+    private boolean enabled;
+    /**
+     * 下单后多久未支付就取消，单位毫秒
+     */
+    @Value("${hmdp.seckill.order-timeout.timeout:900000}")
+    private long timeout;
+    @Value("${hmdp.seckill.order-timeout.tick:1000}")
+    private long tick;
+    @Value("${hmdp.seckill.order-timeout.wheel-size:60}")
+    private int wheelSize;
+    /**
+     * 认领后的租约时长，租约到期还没处理完的订单重新被认领，单位毫秒
+     */
+    @Value("${hmdp.seckill.order-timeout.retry-delay:60000}")
+    private long retryDelay;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int wheelSize() {
+        return wheelSize;
+    }
+
+    /**
+     * 当前时间所在的刻度
+     */
+    public long currentTick() {
+        return System.currentTimeMillis() / tick;
+    }
+
+    /**
+     * 订单从现在开始计时，到期后取消
+     */
+    public void schedule(Collection<VoucherOrder> orders) {
+        if (!enabled) {
+            return;
+        }
+        long expireAt = System.currentTimeMillis() + timeout;
+        add(slotKey(expireAt / tick), orders, expireAt);
+    }
+
+    /**
+     * 已经取消但redis库存没有归还成功的订单，放入重试队列稍后重新归还
+     */
+    public void retryRelease(Collection<VoucherOrder> orders) {
+        add(SECKILL_RELEASE_RETRY_KEY, orders, System.currentTimeMillis() + retryDelay);
+    }
+
+    /**
+     * 认领重试队列中到期的订单，和时间轮的槽一样按租约处理
+     */
+    public List<VoucherOrder> claimReleases(int limit) {
+        return claim(SECKILL_RELEASE_RETRY_KEY, limit);
+    }
+
+    /**
+     * 库存归还成功，从重试队列删除
+     */
+    public void completeReleases(Collection<VoucherOrder> orders) {
+        remove(SECKILL_RELEASE_RETRY_KEY, orders);
+    }
+
+    private void add(String key, Collection<VoucherOrder> orders, long score) {
+        byte[] raw = raw(key);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (VoucherOrder order : orders) {
+                connection.zSetCommands().zAdd(raw, score, raw(toMember(order)));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 认领刻度对应的槽中已经到期的订单，订单仍留在槽中直到调用complete，租约到期前不会再被认领
+     */
+    public List<VoucherOrder> claim(long tickIndex, int limit) {
+        return claim(slotKey(tickIndex), limit);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<VoucherOrder> claim(String key, int limit) {
+        long now = System.currentTimeMillis();
+        List<String> members = stringRedisTemplate.execute(CLAIM_SCRIPT,
+                Collections.singletonList(key),
+                String.valueOf(now), String.valueOf(limit), String.valueOf(now + retryDelay));
+        if (members == null || members.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<VoucherOrder> orders = new ArrayList<>(members.size());
+        members.forEach(member -> orders.add(fromMember(member)));
+        return orders;
+    }
+
+    /**
+     * 订单处理完成，从槽中删除
+     */
+    public void complete(long tickIndex, Collection<VoucherOrder> orders) {
+        remove(slotKey(tickIndex), orders);
+    }
+
+    private void remove(String key, Collection<VoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(key, orders.stream().map(OrderTimeoutWheel::toMember).toArray());
+    }
+
+    private String slotKey(long tickIndex) {
+        return SECKILL_TIMEOUT_KEY + Math.floorMod(tickIndex, wheelSize);
+    }
+
+    /**
+     * 成员保存 订单id:优惠券id:用户id，取消时不用再查询订单就能归还库存
+     */
+    private static String toMember(VoucherOrder order) {
+        return order.getId() + ":" + order.getVoucherId() + ":" + order.getUserId();
+    }
+
+    private static VoucherOrder fromMember(String member) {
+        String[] parts = member.split(":");
+        VoucherOrder order = new VoucherOrder();
+        order.setId(Long.valueOf(parts[0]));
+        order.setVoucherId(Long.valueOf(parts[1]));
+        order.setUserId(Long.valueOf(parts[2]));
+        return order;
+    }
+
+    private static byte[] raw(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 基于RabbitMQ的订单队列，脚本成功之后再投递消息，由SeckillOrderListener消费
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.order-queue", havingValue = "rabbit", matchIfMissing = true)
+public class RabbitVoucherOrderQueue implements VoucherOrderQueue {
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @Override
+    public String scriptQueueKey() {
+        return null;
+    }
+
+    @Override
+    public void afterScript(VoucherOrder voucherOrder) {
+        //存入消息队列等待异步消费
+        rabbitTemplate.convertAndSend("seckill.direct", "seckill.order", voucherOrder);
+    }
+}
@@ -0,0 +1,290 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.HashUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_ADD_CHANNEL;
+import static com.hmdp.utils.RedisConstants.BLOOM_RELOAD_CHANNEL;
+
+/**
+ * 基于redis bitmap的布隆过滤器，所有节点共享同一个bitmap，本地再保留一份BitSet镜像，
+ * 查询只走本地镜像，写入同时写redis和本地并广播给其他节点
+ */
+@Slf4j
+public class RedisBloomFilter {
+    private static final int BATCH_SIZE = 1000;
+    private static final DefaultRedisScript<Object> PUT_SCRIPT;
+
+    static {
+        PUT_SCRIPT = new DefaultRedisScript<>();
+        PUT_SCRIPT.setLocation(new ClassPathResource("bloomPut.lua"));
+    }
+
+    private final String key;
+    private final byte[] rawKey;
+    private final String tmpKey;
+    private final int numBits;
+    private final int numHashFunctions;
+    private final StringRedisTemplate stringRedisTemplate;
+    /**
+     * 多个节点同时重建会互相删除对方写了一半的临时key，重建前先获取这把分布式锁，获取不到就跳过
+     */
+    private final RLock rebuildLock;
+    private volatile BitSet localBits;
+    /**
+     * 本地镜像是否已经从redis加载或重建过，之前的查询一律放行，避免其他节点重建期间把存在的数据当成不存在
+     */
+    private volatile boolean loaded;
+    /**
+     * 替换本地镜像期间写入的元素同时记录在这里，替换时合并到新镜像中，putLocal和替换都在lock上同步
+     */
+    private BitSet pendingBits;
+    private final Object lock = new Object();
+
+    /**
+     * @param key                redis中bitmap的key
+     * @param expectedInsertions 预计元素个数
+     * @param fpp                期望误判率
+     */
+    public RedisBloomFilter(String key, long expectedInsertions, double fpp, StringRedisTemplate stringRedisTemplate,
+                            RedissonClient redissonClient) {
+        this.key = key;
+        this.rawKey = key.getBytes(StandardCharsets.UTF_8);
+        this.tmpKey = key + ":rebuilding";
+        //根据元素个数和误判率计算bit数组长度和哈希函数个数
+        long bits = (long) (-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = (int) Math.min(Math.max(bits, 64), Integer.MAX_VALUE);
+        this.numHashFunctions = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.rebuildLock = redissonClient.getLock(key + ":rebuild-lock");
+        this.localBits = new BitSet(numBits);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * 判断元素是否可能存在，返回false就一定不存在
+     */
+    public boolean mightContain(Object value) {
+        if (!loaded) {
+            return true;
+        }
+        BitSet bits = localBits;
+        for (int offset : offsets(value)) {
+            if (!bits.get(offset)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 添加元素，正在重建时同时写入临时key，并通知其他节点同步本地镜像
+     */
+    public void put(Object value) {
+        Object[] offsets = Arrays.stream(offsets(value)).mapToObj(String::valueOf).toArray();
+        stringRedisTemplate.execute(PUT_SCRIPT, Arrays.asList(key, tmpKey), offsets);
+        putLocal(value);
+        stringRedisTemplate.convertAndSend(BLOOM_ADD_CHANNEL, key + "#" + value);
+    }
+
+    /**
+     * 只写本地镜像，由广播监听器调用
+     */
+    public void putLocal(Object value) {
+        int[] offsets = offsets(value);
+        synchronized (lock) {
+            for (int offset : offsets) {
+                localBits.set(offset);
+                if (pendingBits != null) {
+                    pendingBits.set(offset);
+                }
+            }
+        }
+    }
+
+    public boolean exists() {
+        Boolean exists = stringRedisTemplate.hasKey(key);
+        return exists != null && exists;
+    }
+
+    /**
+     * 在线重建：先创建临时key再加载全量数据写入临时key，写完后rename覆盖正式key，并替换本地镜像，重建期间查询不受影响；
+     * 临时key存在期间的put同时写入临时key，加载之后新增的元素不会丢失
+     * @param loader 从数据库加载全量元素，在临时key创建之后调用
+     * @return false表示其他节点正在重建，本次跳过，那边完成后会广播重新加载
+     */
+    public synchronized boolean rebuild(Supplier<? extends Collection<?>> loader) {
+        //不指定租约时间，由redisson的看门狗在重建期间自动续期
+        if (!rebuildLock.tryLock()) {
+            log.info("布隆过滤器{}正在由其他节点重建，跳过", key);
+            return false;
+        }
+        try {
+            doRebuild(loader);
+            return true;
+        } finally {
+            rebuildLock.unlock();
+        }
+    }
+
+    private void doRebuild(Supplier<? extends Collection<?>> loader) {
+        byte[] rawTmpKey = tmpKey.getBytes(StandardCharsets.UTF_8);
+        stringRedisTemplate.delete(tmpKey);
+        //先占住临时key，之后的put都会双写，没有数据时也能rename，避免每次启动都重建
+        stringRedisTemplate.opsForValue().setBit(tmpKey, numBits - 1L, false);
+        startPending();
+        BitSet bits = new BitSet(numBits);
+        Object[] all;
+        try {
+            all = loader.get().toArray();
+            for (int from = 0; from < all.length; from += BATCH_SIZE) {
+                int to = Math.min(from + BATCH_SIZE, all.length);
+                int start = from;
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (int i = start; i < to; i++) {
+                        int[] offsets = offsets(all[i]);
+                        setBits(connection, rawTmpKey, offsets);
+                        for (int offset : offsets) {
+                            bits.set(offset);
+                        }
+                    }
+                    return null;
+                });
+            }
+            stringRedisTemplate.rename(tmpKey, key);
+        } catch (RuntimeException e) {
+            //失败时删除临时key，put不再双写
+            clearPending();
+            stringRedisTemplate.delete(tmpKey);
+            throw e;
+        }
+        swapLocal(bits);
+        stringRedisTemplate.convertAndSend(BLOOM_RELOAD_CHANNEL, key);
+        log.info("布隆过滤器{}重建完成，元素个数:{}", key, all.length);
+    }
+
+    /**
+     * 从redis全量拉取bitmap合并到本地镜像，定时执行以兜底丢失的广播；
+     * 只合并不替换，拉取期间通过广播写入本地的元素不会被旧快照覆盖
+     */
+    @Scheduled(fixedDelayString = "${hmdp.bloom.sync-interval:60000}")
+    public void syncFromRedis() {
+        BitSet bits = fetch();
+        if (bits == null) {
+            return;
+        }
+        synchronized (lock) {
+            localBits.or(bits);
+        }
+        loaded = true;
+    }
+
+    /**
+     * 其他节点重建完成后用redis中的bitmap替换本地镜像，清掉已经删除的元素，拉取期间写入本地的元素合并到新镜像中
+     */
+    public synchronized void reload() {
+        startPending();
+        BitSet bits;
+        try {
+            bits = fetch();
+        } catch (RuntimeException e) {
+            clearPending();
+            throw e;
+        }
+        if (bits == null) {
+            clearPending();
+            return;
+        }
+        swapLocal(bits);
+    }
+
+    private void startPending() {
+        synchronized (lock) {
+            pendingBits = new BitSet(numBits);
+        }
+    }
+
+    private void clearPending() {
+        synchronized (lock) {
+            pendingBits = null;
+        }
+    }
+
+    private void swapLocal(BitSet bits) {
+        synchronized (lock) {
+            bits.or(pendingBits);
+            pendingBits = null;
+            localBits = bits;
+        }
+        loaded = true;
+    }
+
+    private BitSet fetch() {
+        byte[] bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.stringCommands().get(rawKey));
+        if (bytes == null) {
+            return null;
+        }
+        BitSet bits = new BitSet(numBits);
+        //redis的bitmap是按字节从高位到低位排列的
+        for (int i = 0; i < bytes.length; i++) {
+            for (int j = 0; j < 8; j++) {
+                if ((bytes[i] & (0x80 >> j)) != 0) {
+                    bits.set(i * 8 + j);
+                }
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * 统计当前状态，误判率按已置位比例估算：(置位数/总位数)^哈希函数个数
+     */
+    public Map<String, Object> stats() {
+        int bitCount = localBits.cardinality();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("key", key);
+        stats.put("numBits", numBits);
+        stats.put("numHashFunctions", numHashFunctions);
+        stats.put("bitCount", bitCount);
+        stats.put("falsePositiveRate", Math.pow((double) bitCount / numBits, numHashFunctions));
+        return stats;
+    }
+
+    private int[] offsets(Object value) {
+        //双重哈希模拟k个哈希函数：h(i)=h1+i*h2
+        long[] hash = HashUtil.murmur128(value.toString().getBytes(StandardCharsets.UTF_8));
+        int[] offsets = new int[numHashFunctions];
+        long combined = hash[0];
+        for (int i = 0; i < numHashFunctions; i++) {
+            offsets[i] = (int) ((combined & Long.MAX_VALUE) % numBits);
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private static void setBits(RedisConnection connection, byte[] rawKey, int[] offsets) {
+        for (int offset : offsets) {
+            connection.stringCommands().setBit(rawKey, offset, true);
+        }
+    }
+}
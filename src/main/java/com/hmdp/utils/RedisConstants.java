@@ -10,11 +10,34 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_SHOP_HASH_KEY = "cache:shop:hash:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    public static final String BLOOM_SHOP_KEY = "bloom:shop";
+    public static final String BLOOM_ADD_CHANNEL = "bloom:add";
+    public static final String BLOOM_RELOAD_CHANNEL = "bloom:reload";
+
+    public static final String SHOP_TYPE_KEY = "typeList";
+    public static final String SHOP_TYPE_VERSION_KEY = "typeList:version";
+    public static final Long SHOP_TYPE_TTL = 24L;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_BUCKETS_KEY = "seckill:buckets:";
+    public static final String SECKILL_WINDOW_KEY = "seckill:window:";
+    public static final String SECKILL_ORDER_STREAM_KEY = "stream.orders";
+    public static final String SECKILL_ORDER_DEAD_STREAM_KEY = "stream.orders.dead";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:sold-out";
+    public static final String SECKILL_REPLENISH_CHANNEL = "seckill:replenish";
+    public static final String SECKILL_LIMIT_KEY = "seckill:limit";
+    public static final String SECKILL_NODES_KEY = "seckill:nodes";
+    public static final String SECKILL_TIMEOUT_KEY = "seckill:timeout:";
+    public static final String SECKILL_RELEASE_RETRY_KEY = "seckill:release:retry";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last:";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -1,35 +1,235 @@
 package com.hmdp.utils;
 
-import org.springframework.beans.factory.annotation.Autowired;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Resource;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+@Slf4j
 @Component
 public class RedisIdWorker {
     @Resource
     StringRedisTemplate stringRedisTemplate;
+    @Resource
+    SnowflakeIdGenerator snowflakeIdGenerator;
     private static final long BEGIN_TIMESTAMP = 1712707200L;//生成的业务开始时间戳
     private static final int COUNT_BITS = 32;//序列号位数
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+    /**
+     * 号段用掉这个比例之后开始预取下一个号段
+     */
+    private static final double PREFETCH_RATIO = 0.8;
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "id-segment-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * 在本地生成id的key前缀
+     */
+    @Value("${hmdp.id.snowflake-prefixes:}")
+    private Set<String> snowflakePrefixes;
+    /**
+     * 使用号段模式的key前缀
+     */
+    @Value("${hmdp.id.segment-prefixes:}")
+    private Set<String> segmentPrefixes;
+    /**
+     * 每次从redis申请的序列号个数
+     */
+    @Value("${hmdp.id.segment-step:1000}")
+    private long segmentStep;
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+    /**
+     * 缓存当天的日期字符串，不用每次都格式化
+     */
+    private volatile DateCache dateCache = new DateCache(-1, null);
+
+    public enum Strategy {
+        /**
+         * 每个id执行一次INCR
+         */
+        INCR,
+        /**
+         * 每次INCRBY申请一段序列号在本地分配，用掉一部分后预取下一段
+         */
+        SEGMENT,
+        /**
+         * 本地按毫秒时间戳、租用的workerId和序列号生成，不可用时退回号段模式
+         */
+        SNOWFLAKE
+    }
 
     public long nextId(String keyPrefix) {
+        if (snowflakePrefixes.contains(keyPrefix)) {
+            return nextId(keyPrefix, Strategy.SNOWFLAKE);
+        }
+        return nextId(keyPrefix, segmentPrefixes.contains(keyPrefix) ? Strategy.SEGMENT : Strategy.INCR);
+    }
+
+    public long nextId(String keyPrefix, Strategy strategy) {
+        if (strategy == Strategy.SNOWFLAKE) {
+            Long id = snowflakeIdGenerator.nextId();
+            if (id != null) {
+                return id;
+            }
+            strategy = Strategy.SEGMENT;
+        }
         //1.生成时间戳
-        LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timestamp = nowSecond - BEGIN_TIMESTAMP;
+        long nowSecond = nowSecond();
+        long timestamp = timestamp(nowSecond);
         //2.生成序列号
         //2.1获取当前日期【精确到天】，自增长id的键需要拼接上时间【避免超过序列号存储上限且方便统计】
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        //2.2自增长【这里使用基本数据类型方便计算，并且不存在空指针的情况，因为如果key不存在也会自动生成一个值为0的key】
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
-        //3.拼接后返回【先向左移把32位空出来，然后同count进行或运算，只要有1就为真】
+        String date = date(nowSecond);
+        //2.2自增长，号段模式从本地号段中取，两种模式共用同一个key，可以随时切换
+        long count = strategy == Strategy.SEGMENT
+                ? nextFromSegment(keyPrefix, date)
+                : stringRedisTemplate.opsForValue().increment(key(keyPrefix, date));
+        //3.拼接后返回
+        return compose(timestamp, count);
+    }
+
+    /**
+     * 由lua脚本自增序列号时使用，先取一次当前秒，再用它计算时间戳和自增key，保证两者对应同一天
+     */
+    public static long nowSecond() {
+        return LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
+    }
+
+    public static long timestamp(long nowSecond) {
+        return nowSecond - BEGIN_TIMESTAMP;
+    }
+
+    public String sequenceKey(String keyPrefix, long nowSecond) {
+        return key(keyPrefix, date(nowSecond));
+    }
+
+    /**
+     * 拼接时间戳和序列号【先向左移把32位空出来，然后同count进行或运算，只要有1就为真】
+     */
+    public static long compose(long timestamp, long count) {
         return timestamp << COUNT_BITS | count;
     }
 
+    private String date(long nowSecond) {
+        long day = Math.floorDiv(nowSecond, 86400L);
+        DateCache cache = dateCache;
+        if (cache.day != day) {
+            cache = new DateCache(day, LocalDate.ofEpochDay(day).format(DATE_FORMATTER));
+            dateCache = cache;
+        }
+        return cache.date;
+    }
+
+    private static String key(String keyPrefix, String date) {
+        return "icr:" + keyPrefix + ":" + date;
+    }
+
+    private long nextFromSegment(String keyPrefix, String date) {
+        SegmentBuffer buffer = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            //号段只能在申请它的那一天使用，跨天后序列号从新的key重新申请
+            if (segment != null && segment.date.equals(date)) {
+                long value = segment.cursor.getAndIncrement();
+                if (value <= segment.max) {
+                    if (value == segment.prefetchAt) {
+                        buffer.prefetch(segment);
+                    }
+                    return value;
+                }
+            }
+            buffer.switchSegment(segment, date);
+        }
+    }
+
+    /**
+     * 从redis申请一段序列号
+     */
+    private Segment lease(String keyPrefix, String date) {
+        long max = stringRedisTemplate.opsForValue().increment(key(keyPrefix, date), segmentStep);
+        return new Segment(date, max - segmentStep + 1, max);
+    }
+
+    /**
+     * 双缓冲：当前号段用到一定比例时异步申请下一个号段，当前号段用完后直接切换
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> next;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private synchronized void prefetch(Segment segment) {
+            if (next == null && current == segment) {
+                next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, segment.date), PREFETCH_EXECUTOR);
+            }
+        }
+
+        private synchronized void switchSegment(Segment exhausted, String date) {
+            if (current != exhausted) {
+                //其他线程已经切换过了
+                return;
+            }
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.join();
+                } catch (Exception e) {
+                    log.warn("预取号段失败:{}", keyPrefix, e);
+                }
+                next = null;
+            }
+            if (segment == null || !segment.date.equals(date)) {
+                segment = lease(keyPrefix, date);
+            }
+            current = segment;
+        }
+    }
+
+    private static class Segment {
+        private final String date;
+        private final AtomicLong cursor;
+        private final long max;
+        /**
+         * 分配到这个序列号时触发预取，只会有一个线程取到
+         */
+        private final long prefetchAt;
+
+        private Segment(String date, long start, long max) {
+            this.date = date;
+            this.cursor = new AtomicLong(start);
+            this.max = max;
+            this.prefetchAt = start + (long) ((max - start + 1) * PREFETCH_RATIO);
+        }
+    }
+
+    private static class DateCache {
+        private final long day;
+        private final String date;
+
+        private DateCache(long day, String date) {
+            this.day = day;
+            this.date = date;
+        }
+    }
+
     public static void main(String[] args) {
         LocalDateTime localDateTime = LocalDateTime.of(2024, 4, 10, 0, 0, 0);
         System.out.println(localDateTime.toEpochSecond(ZoneOffset.UTC));
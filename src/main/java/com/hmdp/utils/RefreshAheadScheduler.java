@@ -0,0 +1,162 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 逻辑过期缓存的提前刷新调度器：记录每个key的访问频率，访问频繁的key在逻辑过期前由后台刷新，
+ * 用户请求只负责记录访问，不再触发重建。每轮刷新的key数量受数据库QPS预算限制，
+ * 同时进行的刷新数量受并发数限制，长时间没有访问的key不再跟踪
+ */
+@Slf4j
+@Component
+public class RefreshAheadScheduler {
+    @Value("${hmdp.cache.refresh-ahead.enabled:false}")
+    private boolean enabled;
+    @Value("${hmdp.cache.refresh-ahead.interval:1000}")
+    private long interval;
+    @Value("${hmdp.cache.refresh-ahead.lead-time:2000}")
+    private long leadTime;
+    @Value("${hmdp.cache.refresh-ahead.min-rate:1.0}")
+    private double minRate;
+    @Value("${hmdp.cache.refresh-ahead.db-qps:50}")
+    private double dbQps;
+    @Value("${hmdp.cache.refresh-ahead.idle-timeout:60000}")
+    private long idleTimeout;
+    @Value("${hmdp.cache.refresh-ahead.max-keys:10000}")
+    private int maxKeys;
+    @Value("${hmdp.cache.refresh-ahead.concurrency:4}")
+    private int concurrency;
+    @Resource
+    private ExecutorService cacheRebuildExecutor;
+    /**
+     * 同时进行的刷新数量
+     */
+    private Semaphore permits;
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        permits = new Semaphore(concurrency);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 记录一次访问
+     * @param expireAt 本次读到的逻辑过期时间
+     * @param refresher 重建缓存，返回新的逻辑过期时间，没有抢到重建锁时返回0
+     * @return false表示跟踪的key已满，这个key不会被后台刷新，需要调用方自己判断是否重建
+     */
+    public boolean record(String key, long expireAt, Supplier<Long> refresher) {
+        Tracked t = tracked.get(key);
+        if (t == null) {
+            if (tracked.size() >= maxKeys) {
+                return false;
+            }
+            t = tracked.computeIfAbsent(key, k -> new Tracked(refresher));
+        }
+        t.hits.increment();
+        t.lastAccess = System.currentTimeMillis();
+        //一级缓存中的旧版本不能把已经刷新过的过期时间改回去
+        if (expireAt > t.expireAt) {
+            t.expireAt = expireAt;
+        }
+        return true;
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.cache.refresh-ahead.interval:1000}")
+    public void tick() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        //1.更新访问频率，清理长时间没有访问的key，找出即将过期的key
+        List<Tracked> due = new ArrayList<>();
+        Iterator<Tracked> iterator = tracked.values().iterator();
+        while (iterator.hasNext()) {
+            Tracked t = iterator.next();
+            double latest = t.hits.sumThenReset() * 1000.0 / interval;
+            t.rate = t.rate == 0 ? latest : t.rate * 0.5 + latest * 0.5;
+            if (now - t.lastAccess > idleTimeout) {
+                iterator.remove();
+                continue;
+            }
+            if (t.refreshing || t.expireAt - now > leadTime + interval) {
+                continue;
+            }
+            //已经过期的key说明刚刚有用户读到了旧数据，不论频率都要刷新
+            if (t.expireAt <= now || t.rate >= minRate) {
+                due.add(t);
+            }
+        }
+        if (due.isEmpty()) {
+            return;
+        }
+        //2.越早过期的越优先，本轮最多刷新QPS预算允许的数量
+        due.sort(Comparator.comparingLong(t -> t.expireAt));
+        int budget = (int) Math.max(1, dbQps * interval / 1000);
+        for (int i = 0; i < due.size() && i < budget; i++) {
+            if (!permits.tryAcquire()) {
+                break;
+            }
+            Tracked t = due.get(i);
+            t.refreshing = true;
+            try {
+                cacheRebuildExecutor.execute(() -> refresh(t));
+            } catch (RejectedExecutionException e) {
+                t.refreshing = false;
+                permits.release();
+                break;
+            }
+        }
+    }
+
+    private void refresh(Tracked t) {
+        try {
+            Long expireAt = t.refresher.get();
+            if (expireAt != null && expireAt > t.expireAt) {
+                t.expireAt = expireAt;
+            }
+        } catch (Exception e) {
+            log.error("提前刷新缓存失败", e);
+        } finally {
+            t.refreshing = false;
+            permits.release();
+        }
+    }
+
+    private static class Tracked {
+        private final Supplier<Long> refresher;
+        private final LongAdder hits = new LongAdder();
+        private volatile long expireAt;
+        private volatile long lastAccess;
+        /**
+         * 每秒访问次数的指数加权平均值
+         */
+        private volatile double rate;
+        private volatile boolean refreshing;
+
+        private Tracked(Supplier<Long> refresher) {
+            this.refresher = refresher;
+        }
+    }
+}
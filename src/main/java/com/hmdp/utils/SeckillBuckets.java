@@ -0,0 +1,178 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀库存分桶：热门优惠券的库存拆分到多个桶，每个桶有自己的库存key和订单集合，
+ * 用户按id哈希到固定的桶，一人一单的判断始终在这个桶的订单集合中进行。
+ * 分桶的key带上{优惠券id:桶号}作为hash tag，同一个桶的库存和订单集合落在同一个slot，不同的桶分散到不同节点。
+ * 桶数为1时使用原来的seckill:stock:{id}和seckill:order:{id}
+ */
+@Component
+public class SeckillBuckets {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.seckill.stock-buckets:1}")
+    private int defaultBuckets;
+    /**
+     * 优惠券id -> 桶数，创建之后不会再变化
+     */
+    private final Map<Long, Integer> bucketCounts = new ConcurrentHashMap<>();
+
+    public int bucketCount(Long voucherId) {
+        Integer cached = bucketCounts.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        //没有记录桶数的是库存还没有加载的券，或者分桶之前创建的券，按一个桶处理但不缓存，等预加载写入桶数
+        String count = stringRedisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + voucherId);
+        if (count == null) {
+            return 1;
+        }
+        int buckets = Integer.parseInt(count);
+        bucketCounts.put(voucherId, buckets);
+        return buckets;
+    }
+
+    /**
+     * 用户所在的桶，用户的订单记录在这个桶的订单集合中
+     */
+    public int homeBucket(Long voucherId, Long userId) {
+        return Math.floorMod(Long.hashCode(userId), bucketCount(voucherId));
+    }
+
+    public String stockKey(Long voucherId, int bucket) {
+        return bucketCount(voucherId) == 1
+                ? SECKILL_STOCK_KEY + voucherId
+                : SECKILL_STOCK_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    public String orderKey(Long voucherId, int bucket) {
+        return bucketCount(voucherId) == 1
+                ? SECKILL_ORDER_KEY + voucherId
+                : SECKILL_ORDER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 时间窗口在每个桶中各存一份，和库存key在同一个slot，脚本中可以一起访问
+     */
+    public String windowKey(Long voucherId, int bucket) {
+        return bucketCount(voucherId) == 1
+                ? SECKILL_WINDOW_KEY + voucherId
+                : SECKILL_WINDOW_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    /**
+     * 写入秒杀时间窗口，单位秒
+     */
+    public void setWindow(Long voucherId, long begin, long end) {
+        int buckets = bucketCount(voucherId);
+        Map<byte[], byte[]> window = new HashMap<>(2);
+        window.put(raw("begin"), raw(String.valueOf(begin)));
+        window.put(raw("end"), raw(String.valueOf(end)));
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < buckets; i++) {
+                connection.hashCommands().hMSet(raw(windowKey(voucherId, i)), window);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 库存还没有写入redis时写入，已经存在的不覆盖；多个节点同时写入时以先写入的桶数为准
+     * @return 是否写入了库存
+     */
+    public boolean initStockIfAbsent(Long voucherId, int stock) {
+        //1.分桶之前创建的券只有原来的库存key，补上桶数
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_STOCK_KEY + voucherId))) {
+            stringRedisTemplate.opsForValue().setIfAbsent(SECKILL_BUCKETS_KEY + voucherId, "1");
+            return false;
+        }
+        //2.占用桶数，读取实际生效的桶数
+        int buckets = Math.max(1, Math.min(defaultBuckets, stock));
+        Boolean created = stringRedisTemplate.opsForValue()
+                .setIfAbsent(SECKILL_BUCKETS_KEY + voucherId, String.valueOf(buckets));
+        if (!Boolean.TRUE.equals(created)) {
+            return false;
+        }
+        bucketCounts.put(voucherId, buckets);
+        //3.每个桶的库存也只在不存在时写入
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < buckets; i++) {
+                int bucketStock = stock / buckets + (i < stock % buckets ? 1 : 0);
+                connection.stringCommands().set(raw(stockKey(voucherId, i)), raw(String.valueOf(bucketStock)),
+                        Expiration.persistent(), RedisStringCommands.SetOption.ifAbsent());
+            }
+            return null;
+        });
+        return true;
+    }
+
+    /**
+     * 写入初始库存，按配置的桶数平均分配，除不尽的部分分给前面的桶
+     */
+    public void initStock(Long voucherId, int stock) {
+        int buckets = Math.max(1, Math.min(defaultBuckets, stock));
+        bucketCounts.put(voucherId, buckets);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < buckets; i++) {
+                int bucketStock = stock / buckets + (i < stock % buckets ? 1 : 0);
+                connection.stringCommands().set(raw(stockKey(voucherId, i)), raw(String.valueOf(bucketStock)));
+            }
+            connection.stringCommands().set(raw(SECKILL_BUCKETS_KEY + voucherId), raw(String.valueOf(buckets)));
+            return null;
+        });
+    }
+
+    /**
+     * 所有桶的剩余库存之和
+     */
+    public long totalStock(Long voucherId) {
+        int buckets = bucketCount(voucherId);
+        List<String> keys = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; i++) {
+            keys.add(stockKey(voucherId, i));
+        }
+        List<String> values = stringRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            return 0;
+        }
+        return values.stream().filter(Objects::nonNull).mapToLong(Long::parseLong).filter(v -> v > 0).sum();
+    }
+
+    /**
+     * 补充库存，按桶平均分配
+     */
+    public void addStock(Long voucherId, int amount) {
+        int buckets = bucketCount(voucherId);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (int i = 0; i < buckets; i++) {
+                int bucketAmount = amount / buckets + (i < amount % buckets ? 1 : 0);
+                if (bucketAmount > 0) {
+                    connection.stringCommands().incrBy(raw(stockKey(voucherId, i)), bucketAmount);
+                }
+            }
+            return null;
+        });
+    }
+
+    private static byte[] raw(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,95 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀券预加载：定时把还没结束的券的时间窗口写入redis，快开始的券在库存key不存在时从数据库加载库存。
+ * 同时在本地保存时间窗口，还没开始或已经结束的请求直接在本地拒绝，不访问redis；
+ * 本地没有记录的券由脚本用redis的时间判断
+ */
+@Slf4j
+@Component
+public class SeckillPreloader {
+    public static final int OPEN = 0;
+    public static final int NOT_STARTED = 3;
+    public static final int ENDED = 4;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillBuckets seckillBuckets;
+    /**
+     * 开始前多久加载库存，单位毫秒
+     */
+    @Value("${hmdp.seckill.preload.lead-time:600000}")
+    private long leadTime;
+    /**
+     * 优惠券id -> {开始时间, 结束时间}，单位毫秒
+     */
+    private final Map<Long, long[]> windows = new ConcurrentHashMap<>();
+
+    /**
+     * 用本地时间窗口判断，没有记录的券返回OPEN，交给脚本判断
+     */
+    public int check(Long voucherId) {
+        long[] window = windows.get(voucherId);
+        if (window == null) {
+            return OPEN;
+        }
+        long now = System.currentTimeMillis();
+        if (now < window[0]) {
+            return NOT_STARTED;
+        }
+        return now > window[1] ? ENDED : OPEN;
+    }
+
+    /**
+     * 写入时间窗口，新增秒杀券时调用
+     */
+    public void loadWindow(SeckillVoucher voucher) {
+        long begin = toMillis(voucher.getBeginTime());
+        long end = toMillis(voucher.getEndTime());
+        seckillBuckets.setWindow(voucher.getVoucherId(), begin / 1000, end / 1000);
+        windows.put(voucher.getVoucherId(), new long[]{begin, end});
+    }
+
+    @Scheduled(fixedDelayString = "${hmdp.seckill.preload.interval:60000}")
+    public void preload() {
+        try {
+            //1.查询所有还没结束的秒杀券
+            LocalDateTime now = LocalDateTime.now();
+            List<SeckillVoucher> vouchers = seckillVoucherService.query().gt("end_time", now).list();
+            LocalDateTime loadBefore = now.plusNanos(leadTime * 1_000_000);
+            for (SeckillVoucher voucher : vouchers) {
+                //2.刷新时间窗口，数据库中修改的时间也会在这里同步
+                loadWindow(voucher);
+                //3.快开始或已经开始的券，redis中没有库存就从数据库加载
+                if (!voucher.getBeginTime().isAfter(loadBefore)
+                        && seckillBuckets.initStockIfAbsent(voucher.getVoucherId(), voucher.getStock())) {
+                    log.info("预加载秒杀券{}的库存:{}", voucher.getVoucherId(), voucher.getStock());
+                }
+            }
+            //4.结束超过一天的券不再保存在本地
+            long expired = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1);
+            windows.values().removeIf(window -> window[1] < expired);
+        } catch (Exception e) {
+            log.error("预加载秒杀券失败", e);
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,182 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.util.IdUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_LIMIT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_NODES_KEY;
+
+/**
+ * 秒杀入口的令牌桶限流，每张券和每个用户各一个桶，都在本地判断不访问redis。
+ * 每张券的总速率保存在redis中，各节点定时上报心跳统计存活节点数，本节点按 总速率/节点数 放行；
+ * 用户的桶只在本地，一个用户的请求分散到多个节点时实际速率最多是配置的节点数倍
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.seckill.limit.enabled:true}")
+    private boolean enabled;
+    /**
+     * 没有单独配置的券使用的总速率，每秒请求数，小于等于0表示不限流
+     */
+    @Value("${hmdp.seckill.limit.voucher-rate:0}")
+    private double defaultVoucherRate;
+    @Value("${hmdp.seckill.limit.user-rate:1}")
+    private double userRate;
+    @Value("${hmdp.seckill.limit.user-burst:2}")
+    private double userBurst;
+    @Value("${hmdp.seckill.limit.user-capacity:100000}")
+    private int userCapacity;
+    @Value("${hmdp.seckill.limit.sync-interval:1000}")
+    private long syncInterval;
+    private final String node = IdUtil.simpleUUID();
+    private final Map<Long, TokenBucket> voucherBuckets = new ConcurrentHashMap<>();
+    /**
+     * voucherId:userId -> 令牌桶，只保留最近活跃的用户
+     */
+    private LRUCache<String, TokenBucket> userBuckets;
+    /**
+     * redis中单独配置的券的总速率，定时同步
+     */
+    private volatile Map<Long, Double> voucherRates = new HashMap<>();
+    private volatile int nodes = 1;
+
+    @PostConstruct
+    private void init() {
+        userBuckets = CacheUtil.newLRUCache(userCapacity);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (enabled) {
+            stringRedisTemplate.opsForZSet().remove(SECKILL_NODES_KEY, node);
+        }
+    }
+
+    /**
+     * 先判断用户再判断券，被用户限流拦下的请求不占用券的令牌
+     * @return false表示超过速率，应该让用户稍后再试
+     */
+    public boolean tryAcquire(Long voucherId, Long userId) {
+        if (!enabled) {
+            return true;
+        }
+        if (userRate > 0) {
+            //按key加锁的取出或创建，同一个用户的并发请求拿到的是同一个桶
+            TokenBucket userBucket = userBuckets.get(voucherId + ":" + userId, () -> new TokenBucket(userRate, userBurst));
+            if (!userBucket.tryAcquire()) {
+                return false;
+            }
+        }
+        TokenBucket voucherBucket = voucherBuckets.computeIfAbsent(voucherId,
+                id -> new TokenBucket(localRate(id), localRate(id)));
+        return voucherBucket.tryAcquire();
+    }
+
+    /**
+     * 修改一张券的总速率，本节点立即生效，其他节点下次同步时生效
+     */
+    public void setVoucherRate(Long voucherId, double rate) {
+        stringRedisTemplate.opsForHash().put(SECKILL_LIMIT_KEY, voucherId.toString(), String.valueOf(rate));
+        Map<Long, Double> rates = new HashMap<>(voucherRates);
+        rates.put(voucherId, rate);
+        voucherRates = rates;
+        TokenBucket bucket = voucherBuckets.get(voucherId);
+        if (bucket != null) {
+            bucket.setRate(localRate(voucherId), localRate(voucherId));
+        }
+    }
+
+    /**
+     * 上报心跳并统计存活节点数，同步各券的速率
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.limit.sync-interval:1000}")
+    public void sync() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            //1.上报心跳，清除3个周期没有心跳的节点
+            long now = System.currentTimeMillis();
+            stringRedisTemplate.opsForZSet().add(SECKILL_NODES_KEY, node, now);
+            stringRedisTemplate.opsForZSet().removeRangeByScore(SECKILL_NODES_KEY, 0, now - 3 * syncInterval);
+            Long count = stringRedisTemplate.opsForZSet().zCard(SECKILL_NODES_KEY);
+            nodes = count == null || count < 1 ? 1 : count.intValue();
+            //2.同步各券的总速率
+            Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(SECKILL_LIMIT_KEY);
+            Map<Long, Double> rates = new HashMap<>(entries.size());
+            entries.forEach((id, rate) -> rates.put(Long.valueOf(id.toString()), Double.valueOf(rate.toString())));
+            voucherRates = rates;
+            //3.按新的节点数和速率调整本地的桶
+            voucherBuckets.forEach((voucherId, bucket) -> bucket.setRate(localRate(voucherId), localRate(voucherId)));
+        } catch (Exception e) {
+            log.warn("同步秒杀限流配置失败", e);
+        }
+    }
+
+    private double localRate(Long voucherId) {
+        double rate = voucherRates.getOrDefault(voucherId, defaultVoucherRate);
+        return rate <= 0 ? 0 : rate / nodes;
+    }
+
+    /**
+     * 令牌桶，按时间差补充令牌，速率小于等于0表示不限流
+     */
+    private static class TokenBucket {
+        private double rate;
+        private double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        private TokenBucket(double rate, double capacity) {
+            this.rate = rate;
+            //桶容量至少为1，否则速率很低时永远拿不到令牌
+            this.capacity = Math.max(1, capacity);
+            this.tokens = this.capacity;
+        }
+
+        private synchronized boolean tryAcquire() {
+            if (rate <= 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        private synchronized void setRate(double rate, double capacity) {
+            capacity = Math.max(1, capacity);
+            if (this.rate == rate && this.capacity == capacity) {
+                return;
+            }
+            if (this.rate <= 0) {
+                //从不限流切换过来，从满桶开始
+                tokens = capacity;
+                lastRefill = System.nanoTime();
+            }
+            this.rate = rate;
+            this.capacity = capacity;
+            tokens = Math.min(tokens, capacity);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.IdUtil;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LAST_KEY;
+
+/**
+ * 本地生成id：1位标记 + 40位毫秒时间戳 + 10位workerId + 12位序列号，生成id不访问redis。
+ * workerId从redis租用，定时续约，关闭时释放；租约失效或时钟回拨超过允许范围时返回null，由调用方改用redis生成
+ */
+@Slf4j
+@Component
+public class SnowflakeIdGenerator {
+    private static final long BEGIN_MILLIS = 1712707200000L;//和RedisIdWorker使用同一个开始时间
+    private static final int SEQUENCE_BITS = 12;
+    private static final int WORKER_BITS = 10;
+    private static final int TIMESTAMP_BITS = 40;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    /**
+     * 第62位固定为1，和RedisIdWorker按秒生成的id区分开，并且总是比它们大；后者的时间戳部分34年后才会用到这一位
+     */
+    private static final long FLAG = 1L << (TIMESTAMP_BITS + WORKER_BITS + SEQUENCE_BITS);
+    private static final DefaultRedisScript<Long> ACQUIRE_SCRIPT;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        ACQUIRE_SCRIPT = new DefaultRedisScript<>();
+        ACQUIRE_SCRIPT.setLocation(new ClassPathResource("idWorkerAcquire.lua"));
+        ACQUIRE_SCRIPT.setResultType(Long.class);
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("idWorkerRenew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("idWorkerRelease.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+    @Value("${hmdp.id.snowflake.lease-ttl:30000}")
+    private long leaseTtl;
+    @Value("${hmdp.id.snowflake.max-backward:2000}")
+    private long maxBackward;
+    private final String token = IdUtil.simpleUUID();
+    private int workerId = -1;
+    /**
+     * 本地认为租约有效的截止时间，按发起请求之前的时间计算，不会晚于redis中key的过期时间
+     */
+    private long leaseExpireAt;
+    /**
+     * 租用失败后等到这个时间再重试，避免每次生成id都遍历所有workerId
+     */
+    private long acquireRetryAt;
+    private long lastTimestamp = -1;
+    private long sequence;
+
+    /**
+     * 生成一个id，没有可用的workerId或者时钟回拨超过允许范围时返回null
+     */
+    public synchronized Long nextId() {
+        long now = System.currentTimeMillis();
+        //1.确认持有有效的workerId
+        if (now >= leaseExpireAt && !acquire(now)) {
+            return null;
+        }
+        //2.时钟回拨时沿用上一个时间戳继续分配序列号，回拨太多就放弃
+        long timestamp = Math.max(now, lastTimestamp);
+        if (timestamp - now > maxBackward) {
+            log.error("时钟回拨{}ms，超过允许范围", timestamp - now);
+            return null;
+        }
+        //3.同一毫秒内递增序列号，用完了借用下一毫秒
+        if (timestamp == lastTimestamp) {
+            sequence = (sequence + 1) & MAX_SEQUENCE;
+            if (sequence == 0) {
+                timestamp++;
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = timestamp;
+        //4.拼接
+        return FLAG | (timestamp - BEGIN_MILLIS) << (WORKER_BITS + SEQUENCE_BITS)
+                | (long) workerId << SEQUENCE_BITS | sequence;
+    }
+
+    /**
+     * 从随机位置开始依次尝试租用workerId
+     */
+    private boolean acquire(long now) {
+        workerId = -1;
+        if (now < acquireRetryAt) {
+            return false;
+        }
+        int start = RandomUtil.randomInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int id = (start + i) % MAX_WORKERS;
+            Long acquired = stringRedisTemplate.execute(ACQUIRE_SCRIPT,
+                    Arrays.asList(ID_WORKER_KEY + id, ID_WORKER_LAST_KEY + id),
+                    token, String.valueOf(leaseTtl), String.valueOf(now));
+            if (acquired != null && acquired == 1) {
+                workerId = id;
+                leaseExpireAt = now + leaseTtl;
+                log.info("租用workerId:{}", id);
+                return true;
+            }
+        }
+        log.error("没有可用的workerId");
+        acquireRetryAt = now + 1000;
+        return false;
+    }
+
+    /**
+     * 定时续约，续约失败说明租约已经被其他节点拿走，下次生成id时重新租用
+     */
+    @Scheduled(fixedDelayString = "${hmdp.id.snowflake.heartbeat:10000}")
+    public void renew() {
+        int id;
+        synchronized (this) {
+            id = workerId;
+        }
+        if (id < 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expireAt = now + leaseTtl;
+        try {
+            Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                    Arrays.asList(ID_WORKER_KEY + id, ID_WORKER_LAST_KEY + id),
+                    token, String.valueOf(leaseTtl), String.valueOf(Math.max(expireAt, lastTimestampOf())));
+            synchronized (this) {
+                if (workerId != id) {
+                    return;
+                }
+                if (renewed != null && renewed == 1) {
+                    leaseExpireAt = expireAt;
+                } else {
+                    log.warn("workerId:{}的租约已失效", id);
+                    workerId = -1;
+                    leaseExpireAt = 0;
+                }
+            }
+        } catch (Exception e) {
+            //租约到期之前还有重试机会，到期后生成id时会重新租用
+            log.error("workerId:{}续约失败", id, e);
+        }
+    }
+
+    private synchronized long lastTimestampOf() {
+        return lastTimestamp;
+    }
+
+    @PreDestroy
+    private synchronized void release() {
+        if (workerId < 0) {
+            return;
+        }
+        try {
+            stringRedisTemplate.execute(RELEASE_SCRIPT,
+                    Arrays.asList(ID_WORKER_KEY + workerId, ID_WORKER_LAST_KEY + workerId),
+                    token, String.valueOf(lastTimestamp));
+        } catch (Exception e) {
+            log.error("释放workerId:{}失败", workerId, e);
+        }
+        workerId = -1;
+        leaseExpireAt = 0;
+    }
+}
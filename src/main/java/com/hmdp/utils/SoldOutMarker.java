@@ -0,0 +1,77 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀券售罄标记：第一次抢不到库存时在本地标记，并广播给其他节点，
+ * 之后对这张券的请求不再访问redis直接返回库存不足；补充库存后清除标记。
+ * 标记和补库存的广播可能乱序，所以定时核对一次redis中的库存，有库存的清除标记
+ */
+@Slf4j
+@Component
+public class SoldOutMarker {
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private SeckillBuckets seckillBuckets;
+    private final Set<Long> soldOut = ConcurrentHashMap.newKeySet();
+
+    public boolean isSoldOut(Long voucherId) {
+        return soldOut.contains(voucherId);
+    }
+
+    /**
+     * 标记售罄并通知其他节点，本节点已经标记过的不重复广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.add(voucherId)) {
+            log.info("秒杀券{}已售罄", voucherId);
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 清除售罄标记并通知其他节点，补充库存之后调用
+     */
+    public void clear(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_REPLENISH_CHANNEL, voucherId.toString());
+    }
+
+    /**
+     * 收到其他节点的广播，只修改本地标记
+     */
+    public void onSoldOut(Long voucherId) {
+        soldOut.add(voucherId);
+    }
+
+    public void onReplenish(Long voucherId) {
+        soldOut.remove(voucherId);
+    }
+
+    /**
+     * 核对已标记售罄的券在redis中是否又有了库存
+     */
+    @Scheduled(fixedDelayString = "${hmdp.seckill.sold-out-check-interval:5000}")
+    public void verify() {
+        for (Long voucherId : soldOut) {
+            try {
+                if (seckillBuckets.totalStock(voucherId) > 0) {
+                    log.info("秒杀券{}已补充库存，清除售罄标记", voucherId);
+                    soldOut.remove(voucherId);
+                }
+            } catch (Exception e) {
+                log.warn("核对秒杀券{}库存失败", voucherId, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM_KEY;
+
+/**
+ * 基于redis stream的订单队列，秒杀脚本扣减库存的同时XADD订单，不存在扣了库存但订单没投递出去的情况，
+ * 由SeckillOrderStreamListener消费
+ */
+@Component
+@ConditionalOnProperty(name = "hmdp.seckill.order-queue", havingValue = "stream")
+public class StreamVoucherOrderQueue implements VoucherOrderQueue {
+    @Override
+    public String scriptQueueKey() {
+        return SECKILL_ORDER_STREAM_KEY;
+    }
+
+    @Override
+    public void afterScript(VoucherOrder voucherOrder) {
+        //订单已经由秒杀脚本写入stream
+    }
+}
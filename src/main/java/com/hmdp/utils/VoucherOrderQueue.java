@@ -0,0 +1,19 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+/**
+ * 秒杀订单队列，通过hmdp.seckill.order-queue选择rabbit或stream实现
+ */
+public interface VoucherOrderQueue {
+    /**
+     * 秒杀脚本在扣减库存的同时写入队列时返回队列的key，由调用方作为脚本的KEYS传入，订单id要在执行脚本之前生成；
+     * 返回null表示脚本不写队列，订单id在抢到之后再生成
+     */
+    String scriptQueueKey();
+
+    /**
+     * 抢购成功之后调用：脚本已经写入队列的实现什么都不做，其他实现在这里投递订单
+     */
+    void afterScript(VoucherOrder voucherOrder);
+}
@@ -0,0 +1,15 @@
+-- 向布隆过滤器写入一个元素，正在重建时同时写入临时key，避免rename之后丢失重建期间新增的元素
+-- KEYS[1]过滤器的key，KEYS[2]重建用的临时key
+-- ARGV 元素对应的所有bit偏移
+
+-- 1.写入正式key
+for i = 1, #ARGV do
+    redis.call('setbit', KEYS[1], ARGV[i], 1)
+end
+-- 2.临时key存在说明正在重建，同时写入
+if redis.call('exists', KEYS[2]) == 1 then
+    for i = 1, #ARGV do
+        redis.call('setbit', KEYS[2], ARGV[i], 1)
+    end
+end
+return nil
@@ -0,0 +1,43 @@
+-- 秒杀券的购买用户集合，KEYS[1]集合key(分段模式下是用户所在段的key)
+-- 1.参数列表
+-- 1.1操作：add、remove、contains
+local op = ARGV[1]
+-- 1.2存储方式：set、bitmap、roaring
+local mode = ARGV[2]
+-- 1.3集合成员：set模式是用户id，bitmap模式是位偏移，roaring模式是用户id在段内的低16位
+local member = ARGV[3]
+-- 1.4roaring模式下段内用户数超过这个值就从set转成bitmap
+local arrayMax = tonumber(ARGV[4])
+local key = KEYS[1]
+
+-- 2.当前容器是否是bitmap，roaring模式下稀疏的段用set(整数编码)，稠密的段用bitmap
+local isBitmap = mode == 'bitmap' or (mode == 'roaring' and redis.call('type', key).ok == 'string')
+
+if op == 'contains' then
+    if isBitmap then
+        return redis.call('getbit', key, member)
+    end
+    return redis.call('sismember', key, member)
+end
+
+if op == 'remove' then
+    if isBitmap then
+        return redis.call('setbit', key, member, 0)
+    end
+    return redis.call('srem', key, member)
+end
+
+-- 3.add，返回1表示新加入，0表示已经存在
+if isBitmap then
+    return 1 - redis.call('setbit', key, member, 1)
+end
+local added = redis.call('sadd', key, member)
+-- 4.段内用户太多时转成bitmap，一个段最多65536位即8KB
+if mode == 'roaring' and added == 1 and redis.call('scard', key) > arrayMax then
+    local members = redis.call('smembers', key)
+    redis.call('del', key)
+    for _, m in ipairs(members) do
+        redis.call('setbit', key, m, 1)
+    end
+end
+return added
@@ -0,0 +1,16 @@
+-- 1.参数列表
+-- 1.1要累加的字段
+local field = ARGV[1]
+-- 1.2增量
+local delta = ARGV[2]
+-- 1.3版本字段，每次整体写入缓存时生成新的版本
+local versionField = ARGV[3]
+-- 1.4事务提交前读到的版本
+local version = ARGV[4]
+
+-- 2.缓存不存在、缓存的是空值或者期间被重新加载过(重新加载时可能已经读到了累加后的数据库值)时不累加，由调用方删除缓存
+if redis.call('hget', KEYS[1], versionField) ~= version then
+    return nil
+end
+-- 3.累加并返回累加后的值，不改变过期时间
+return redis.call('hincrby', KEYS[1], field, delta)
@@ -0,0 +1,21 @@
+-- 1.参数列表
+-- 1.1本节点租约的标识
+local token = ARGV[1]
+-- 1.2租约有效期，单位毫秒
+local ttl = ARGV[2]
+-- 1.3本节点当前时间戳
+local now = tonumber(ARGV[3])
+
+-- 2.workerId已经被其他节点持有
+if redis.call('exists', KEYS[1]) == 1 then
+    return 0
+end
+-- 3.上一个持有者可能生成过比当前时间更晚的id(时钟偏差或异常退出)，等它过去之后再使用
+local last = tonumber(redis.call('get', KEYS[2]))
+if last and last > now then
+    return 0
+end
+-- 4.占用workerId，并记录租约期内可能用到的最大时间戳
+redis.call('set', KEYS[1], token, 'px', ttl)
+redis.call('set', KEYS[2], now + tonumber(ttl))
+return 1
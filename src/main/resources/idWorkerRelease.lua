@@ -0,0 +1,12 @@
+-- 1.参数列表
+-- 1.1本节点租约的标识
+local token = ARGV[1]
+-- 1.2本节点生成id用到的最后一个时间戳
+local lastTimestamp = ARGV[2]
+
+-- 2.只释放自己的租约
+if redis.call('get', KEYS[1]) ~= token then
+    return 0
+end
+redis.call('set', KEYS[2], lastTimestamp)
+return redis.call('del', KEYS[1])
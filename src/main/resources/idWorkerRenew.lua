@@ -0,0 +1,16 @@
+-- 1.参数列表
+-- 1.1本节点租约的标识
+local token = ARGV[1]
+-- 1.2租约有效期，单位毫秒
+local ttl = ARGV[2]
+-- 1.3新的租约期内可能用到的最大时间戳
+local lastTimestamp = ARGV[3]
+
+-- 2.租约已经过期或被其他节点拿走，续约失败
+if redis.call('get', KEYS[1]) ~= token then
+    return 0
+end
+-- 3.续约，并记录最大时间戳，下一个拿到这个workerId的节点等到这个时间之后才会生成id
+redis.call('pexpire', KEYS[1], ttl)
+redis.call('set', KEYS[2], lastTimestamp)
+return 1
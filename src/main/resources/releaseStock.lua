@@ -0,0 +1,22 @@
+-- 取消订单后归还redis库存并把用户移出购买用户集合，两步在一个脚本中完成
+-- KEYS[1]用户所在桶的库存key，KEYS[2]用户所在的购买用户集合key
+-- 1.参数列表
+-- 1.1购买用户集合的存储方式：set、bitmap、roaring，和buyerSet.lua一致
+local mode = ARGV[1]
+-- 1.2用户在集合中的成员
+local member = ARGV[2]
+
+-- 2.用户不在集合中说明已经归还过，不重复归还库存
+local isBitmap = mode == 'bitmap' or (mode == 'roaring' and redis.call('type', KEYS[2]).ok == 'string')
+local removed
+if isBitmap then
+    removed = redis.call('setbit', KEYS[2], member, 0)
+else
+    removed = redis.call('srem', KEYS[2], member)
+end
+if removed == 0 then
+    return 0
+end
+-- 3.归还库存
+redis.call('incrby', KEYS[1], 1)
+return 1
@@ -1,29 +1,84 @@
 -- 1.参数列表
--- 1.1优惠券id
-local voucherId = ARGV[1]
--- 1.2用户id
-local userId = ARGV[2]
+-- 1.1用户id
+local userId = ARGV[1]
+-- 1.2优惠券id
+local voucherId = ARGV[2]
+-- 1.3订单id，由脚本分配序列号时为空
+local orderId = ARGV[3]
+-- 1.4订单id的时间戳部分，由脚本分配序列号时才会传入
+local timestamp = ARGV[4]
+-- 1.5购买用户集合的存储方式：set、bitmap、roaring，和buyerSet.lua一致
+local buyerMode = ARGV[5]
+-- 1.6用户在集合中的成员：set模式是用户id，bitmap模式是位偏移，roaring模式是段内的低16位
+local buyer = ARGV[6]
+-- 1.7roaring模式下段内用户数超过这个值就从set转成bitmap
+local arrayMax = tonumber(ARGV[7])
 
--- 2.数据key
+-- 2.数据key，由调用方根据分桶情况传入
 -- 2.1 库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2 订单key
-local orderKey = 'seckill:order:' .. voucherId
+local stockKey = KEYS[1]
+-- 2.2 订单key，即购买用户集合，roaring模式下是用户所在段的key
+local orderKey = KEYS[2]
+-- 2.3 秒杀时间窗口key，hash中保存开始和结束时间(秒)
+local windowKey = KEYS[3]
+-- 2.4 订单队列key，使用redis stream队列时才会传入
+local queueKey = KEYS[4]
+-- 2.5 订单id的自增key，传入时由脚本分配序列号，和RedisIdWorker使用同一个key
+local sequenceKey = KEYS[5]
 
 -- 3.业务代码
+-- 3.0 判断是否在秒杀时间内，使用redis的时间，不受各节点时钟偏差影响；没有时间窗口的券不判断
+-- 读取时间之后还要写入，按命令而不是按脚本复制
+redis.replicate_commands()
+local window = redis.call('hmget', windowKey, 'begin', 'end')
+if window[1] then
+    local now = tonumber(redis.call('time')[1])
+    if now < tonumber(window[1]) then
+        -- 尚未开始返回3
+        return 3
+    end
+    if now > tonumber(window[2]) then
+        -- 已经结束返回4
+        return 4
+    end
+end
 -- 3.1 判断库存是否充足
-if stockKey == false or tonumber(redis.call('get', stockKey)) <= 0 then
+if (tonumber(redis.call('get', stockKey)) or 0) <= 0 then
     -- 库存不足就返回1
     return 1
 end
 -- 3.2 判断用户是否下单【即集合中是否存在该用户】
-if redis.call('sismember', orderKey, userId) == 1 then
+local isBitmap = buyerMode == 'bitmap' or (buyerMode == 'roaring' and redis.call('type', orderKey).ok == 'string')
+if (isBitmap and redis.call('getbit', orderKey, buyer) or redis.call('sismember', orderKey, buyer)) == 1 then
     -- 存在该用户，说明该用户重复下单
     return 2
 end
 -- 3.3 扣减库存
 redis.call('incrby', stockKey, -1)
 -- 3.4 下单
-redis.call('sadd',orderKey,userId)
+if isBitmap then
+    redis.call('setbit', orderKey, buyer, 1)
+else
+    redis.call('sadd', orderKey, buyer)
+    -- 段内用户太多时转成bitmap
+    if buyerMode == 'roaring' and redis.call('scard', orderKey) > arrayMax then
+        local members = redis.call('smembers', orderKey)
+        redis.call('del', orderKey)
+        for _, m in ipairs(members) do
+            redis.call('setbit', orderKey, m, 1)
+        end
+    end
+end
+-- 3.5 和扣减库存在同一个脚本中写入订单队列
+if sequenceKey then
+    -- 在脚本中分配序列号，订单id超过了lua数字的精度，由调用方和消费者用时间戳和序列号拼接
+    local seq = redis.call('incr', sequenceKey)
+    redis.call('xadd', queueKey, '*', 'userId', userId, 'voucherId', voucherId, 'timestamp', timestamp, 'seq', seq)
+    -- 成功就返回负的序列号
+    return -seq
+end
+if queueKey then
+    redis.call('xadd', queueKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
 -- 成功就返回0
-return 0
\ No newline at end of file
+return 0
@@ -0,0 +1,14 @@
+-- 从指定的桶扣减一个库存，一人一单已经由调用方在用户所在的桶中占位
+-- KEYS[1]库存key，KEYS[2]订单队列key(使用redis stream队列时才会传入)
+-- ARGV: 用户id、优惠券id、订单id
+local stockKey = KEYS[1]
+local queueKey = KEYS[2]
+if (tonumber(redis.call('get', stockKey)) or 0) <= 0 then
+    -- 库存不足就返回1
+    return 1
+end
+redis.call('incrby', stockKey, -1)
+if queueKey then
+    redis.call('xadd', queueKey, '*', 'userId', ARGV[1], 'voucherId', ARGV[2], 'id', ARGV[3])
+end
+return 0
@@ -0,0 +1,21 @@
+-- 1.参数列表
+-- 1.1类型列表key
+local listKey = KEYS[1]
+-- 1.2版本号key
+local versionKey = KEYS[2]
+-- 1.3读取数据库之前的版本号
+local version = tonumber(ARGV[1])
+-- 1.4过期时间，单位秒
+local ttl = tonumber(ARGV[2])
+
+-- 2.读取数据库期间类型被修改过，就不写回旧数据
+if (tonumber(redis.call('get', versionKey)) or 0) ~= version then
+    return 0
+end
+-- 3.覆盖写入，避免并发写回时重复追加
+redis.call('del', listKey)
+for i = 3, #ARGV do
+    redis.call('rpush', listKey, ARGV[i])
+end
+redis.call('expire', listKey, ttl)
+return 1
@@ -0,0 +1,18 @@
+-- 从时间轮的一个槽中认领已经到期的订单，认领时把分数改为租约到期时间，多个节点同时认领时每个订单只会被一个节点拿到；
+-- 处理成功后再从槽中删除，节点在处理中宕机的订单在租约到期后重新被认领
+-- KEYS[1]槽的key
+-- 1.参数列表
+-- 1.1当前时间戳，单位毫秒
+local now = ARGV[1]
+-- 1.2最多认领的个数
+local limit = ARGV[2]
+-- 1.3租约到期时间戳，单位毫秒
+local leaseUntil = ARGV[3]
+
+-- 2.查询到期的订单，还没到期的(时间轮后面几圈的)留在槽中
+local members = redis.call('zrangebyscore', KEYS[1], '-inf', now, 'limit', 0, limit)
+-- 3.租用并返回
+for i = 1, #members do
+    redis.call('zadd', KEYS[1], 'xx', leaseUntil, members[i])
+end
+return members
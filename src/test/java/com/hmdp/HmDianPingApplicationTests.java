@@ -2,27 +2,46 @@ package com.hmdp;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.bean.copier.CopyOptions;
+import com.hmdp.dto.Result;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
 import com.hmdp.service.IShopService;
+import com.hmdp.service.IVoucherService;
 import com.hmdp.service.impl.ShopServiceImpl;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
 
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.BuyerSet;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.UserHolder;
+import com.hmdp.utils.VoucherOrderQueue;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.Test;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.test.util.AopTestUtils;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -46,27 +65,60 @@ class HmDianPingApplicationTests {
         cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + 1L, shop, 10l, TimeUnit.SECONDS);
     }
 
+    @Resource
+    List<CacheCodec> cacheCodecs;
+
+    @Test
+    void testCacheCodec() {
+        Shop shop = shopService.getById(1L);
+        long expireAt = System.currentTimeMillis() + 10000;
+        for (CacheCodec codec : cacheCodecs) {
+            byte[] bytes = codec.encode(shop, expireAt);
+            //预热
+            for (int i = 0; i < 10000; i++) {
+                codec.decode(codec.encode(shop, expireAt), Shop.class);
+            }
+            long begin = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                codec.encode(shop, expireAt);
+            }
+            long encodeTime = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                codec.decode(bytes, Shop.class);
+            }
+            long decodeTime = System.nanoTime() - begin;
+            System.out.println(codec.name() + ": size=" + bytes.length
+                    + " encode=" + encodeTime / 1000000 + "ms decode=" + decodeTime / 1000000 + "ms");
+        }
+    }
+
     private ExecutorService es = Executors.newFixedThreadPool(500);
     @Resource
     RedisIdWorker redisIdWorker;
 
     @Test
     void testUniqueId() throws InterruptedException {
-        CountDownLatch countDownLatch = new CountDownLatch(300);//计数器
-        Runnable task = () -> {
-            for (int i = 0; i < 100; i++) {
-                long order = redisIdWorker.nextId("order");
-//                System.out.println(order);
+        //对比每个id一次INCR和号段模式的吞吐量，同时检查生成的id没有重复
+        for (RedisIdWorker.Strategy strategy : RedisIdWorker.Strategy.values()) {
+            Set<Long> ids = ConcurrentHashMap.newKeySet();
+            CountDownLatch countDownLatch = new CountDownLatch(300);//计数器
+            Runnable task = () -> {
+                for (int i = 0; i < 100; i++) {
+                    ids.add(redisIdWorker.nextId("order", strategy));
+                }
+                countDownLatch.countDown();
+            };
+            long begin = System.currentTimeMillis();
+            for (int i = 0; i < 300; i++) {
+                es.submit(task);
             }
-            countDownLatch.countDown();
-        };
-        long begin = System.currentTimeMillis();
-        for (int i = 0; i < 300; i++) {
-            es.submit(task);
+            countDownLatch.await();
+            long end = System.currentTimeMillis();
+            System.out.println(strategy + ": time=" + (end - begin) + "ms qps=" + 30000 * 1000L / Math.max(1, end - begin)
+                    + " unique=" + ids.size());
+            Assertions.assertEquals(30000, ids.size(), strategy + "生成了重复的id");
         }
-        countDownLatch.await();
-        long end = System.currentTimeMillis();
-        System.out.println("time=" + (end - begin));
     }
 
     @Resource
@@ -77,6 +129,64 @@ class HmDianPingApplicationTests {
         rabbitTemplate.convertAndSend("seckill.direct", "seckill.order", "测试发送消息");
     }
 
+    @Resource
+    IVoucherService voucherService;
+    @Resource
+    VoucherOrderServiceImpl voucherOrderService;
+    @Resource
+    VoucherOrderQueue voucherOrderQueue;
+
+    @Test
+    void testSeckillRoundTrip() throws InterruptedException {
+        //脚本只在stream队列下写入订单，需要以hmdp.seckill.order-queue=stream启动
+        Assumptions.assumeTrue(voucherOrderQueue.scriptQueueKey() != null);
+        //对比先生成订单id再执行脚本，和由脚本分配序列号的单次往返模式
+        //注入的是代理对象，字段要设置在目标对象上，测试结束后恢复，不影响共用同一个上下文的其他测试
+        Object target = AopTestUtils.getTargetObject(voucherOrderService);
+        Object original = ReflectionTestUtils.getField(target, "singleRoundTrip");
+        try {
+            for (boolean singleRoundTrip : new boolean[]{false, true}) {
+                ReflectionTestUtils.setField(target, "singleRoundTrip", singleRoundTrip);
+                //每轮使用一张新券，库存足够所有用户抢到
+                Voucher voucher = new Voucher();
+                voucher.setShopId(1L);
+                voucher.setTitle("压测券");
+                voucher.setPayValue(100L);
+                voucher.setActualValue(100L);
+                voucher.setType(1);
+                voucher.setStock(30000);
+                voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+                voucher.setEndTime(LocalDateTime.now().plusHours(1));
+                voucherService.addSeckillVoucher(voucher);
+                Set<Long> orderIds = ConcurrentHashMap.newKeySet();
+                CountDownLatch countDownLatch = new CountDownLatch(300);
+                long begin = System.currentTimeMillis();
+                for (int i = 0; i < 300; i++) {
+                    long firstUser = i * 100L;
+                    es.submit(() -> {
+                        for (long userId = firstUser; userId < firstUser + 100; userId++) {
+                            UserDTO user = new UserDTO();
+                            user.setId(userId);
+                            UserHolder.saveUser(user);
+                            Result result = voucherOrderService.seckillVoucher(voucher.getId());
+                            if (result.getSuccess()) {
+                                orderIds.add((Long) result.getData());
+                            }
+                        }
+                        UserHolder.removeUser();
+                        countDownLatch.countDown();
+                    });
+                }
+                countDownLatch.await();
+                long end = System.currentTimeMillis();
+                System.out.println("singleRoundTrip=" + singleRoundTrip + ": time=" + (end - begin) + "ms qps="
+                        + 30000 * 1000L / Math.max(1, end - begin) + " orders=" + orderIds.size());
+            }
+        } finally {
+            ReflectionTestUtils.setField(target, "singleRoundTrip", original);
+        }
+    }
+
     @Test
     void testMultUser() {
         //向redis中存入1000条token信息
@@ -160,4 +270,64 @@ class HmDianPingApplicationTests {
         Long size = stringRedisTemplate.opsForHyperLogLog().size("hll1");
         System.out.println("size = " + size);
     }
+
+    @Resource
+    BuyerSet buyerSet;
+
+    @Test
+    void testBuyerSetMemory() {
+        //对比三种购买用户集合在100万和1000万用户时的内存占用，连续id模拟自增用户，稀疏id在50倍范围内随机
+        DefaultRedisScript<Long> script = new DefaultRedisScript<>();
+        script.setLocation(new ClassPathResource("buyerSet.lua"));
+        stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                connection.scriptingCommands().scriptLoad(script.getScriptAsString().getBytes(StandardCharsets.UTF_8)));
+        //测试结束后恢复原来的存储方式，不影响共用同一个上下文的其他测试
+        String original = buyerSet.mode();
+        try {
+            for (String mode : new String[]{BuyerSet.SET, BuyerSet.BITMAP, BuyerSet.ROARING}) {
+                ReflectionTestUtils.setField(buyerSet, "mode", mode);
+                for (int buyers : new int[]{1000000, 10000000}) {
+                    for (boolean sparse : new boolean[]{false, true}) {
+                        String orderKey = "test:buyers:" + mode + ":" + buyers + (sparse ? ":sparse" : ":dense");
+                        Random random = new Random(buyers);
+                        long begin = System.currentTimeMillis();
+                        //每10000个用户一批，流水线执行和秒杀时相同的脚本
+                        for (int from = 0; from < buyers; from += 10000) {
+                            int to = Math.min(buyers, from + 10000);
+                            int batchFrom = from;
+                            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                                for (int i = batchFrom; i < to; i++) {
+                                    long userId = sparse ? (long) (random.nextDouble() * 50L * buyers) : i + 1;
+                                    connection.scriptingCommands().evalSha(script.getSha1(), ReturnType.INTEGER, 1,
+                                            bytes(buyerSet.key(orderKey, userId)), bytes("add"), bytes(mode),
+                                            bytes(buyerSet.member(userId)), bytes(String.valueOf(buyerSet.arrayMax())));
+                                }
+                                return null;
+                            });
+                        }
+                        long writeTime = System.currentTimeMillis() - begin;
+                        //roaring模式每段一个key，统计所有段
+                        Set<String> keys = stringRedisTemplate.keys(orderKey + "*");
+                        long memory = 0;
+                        for (String key : keys) {
+                            Object usage = stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                                    connection.execute("MEMORY", bytes("USAGE"), bytes(key)));
+                            if (usage != null) {
+                                memory += usage instanceof Long ? (Long) usage : Long.parseLong(new String((byte[]) usage, StandardCharsets.UTF_8));
+                            }
+                        }
+                        System.out.println(mode + (sparse ? " sparse" : " dense") + ": buyers=" + buyers + " keys=" + keys.size()
+                                + " memory=" + memory / 1024 + "KB write=" + writeTime + "ms");
+                        stringRedisTemplate.delete(keys);
+                    }
+                }
+            }
+        } finally {
+            ReflectionTestUtils.setField(buyerSet, "mode", original);
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
 }